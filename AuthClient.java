@@ -0,0 +1,105 @@
+import java.net.*;
+import java.net.http.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import com.google.gson.*;
+
+/**
+ * Asks the auth service which agent a token belongs to
+ *
+ * Connections to the auth service are pooled and kept alive between lookups.  Every lookup has strict timeouts and
+ * completes asynchronously.  If the auth service keeps failing, a circuit breaker stops any more lookups for a while,
+ * so requests fall back to the rules used when the auth service isn't running rather than waiting on it.
+ */
+class AuthClient {
+	private final HttpClient client;
+	private final CircuitBreaker breaker;
+	private final Duration timeout;
+	public AuthClient() {
+		timeout = Duration.ofMillis(Manager.getIntSetting("auth_timeout", 3000));
+		client = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_1_1)
+			.connectTimeout(Duration.ofMillis(Manager.getIntSetting("auth_connect_timeout", 1000)))
+			.executor(Executors.newFixedThreadPool(2, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "auth-client");
+					thread.setDaemon(true);
+					return thread;
+				}
+			}))
+			.build();
+		breaker = new CircuitBreaker("auth", Manager.getIntSetting("auth_breaker_failures", 5), Manager.getIntSetting("auth_breaker_reset", 30) * 1000L);
+	}
+
+	/**
+	 * Whether tokens can currently be checked with the auth service
+	 */
+	public boolean isAvailable() {
+		return Manager.authRunning() && !breaker.isOpen();
+	}
+	public CircuitBreaker getBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * Looks up a token with the auth service
+	 *
+	 * @returns CompletableFuture<Integer> Completes with the agentid, null if the auth service rejected the token, or zero if the token couldn't be checked
+	 */
+	public CompletableFuture<Integer> lookUp(String token) {
+		if (!Manager.authRunning() || !breaker.allowRequest()) return CompletableFuture.completedFuture(0);
+		final String authurl = "http://"+Manager.authDomain()+"/data?token="+URLEncoder.encode(token, StandardCharsets.UTF_8);
+		java.net.http.HttpRequest request;
+		try {
+			request = java.net.http.HttpRequest.newBuilder(new URI(authurl)).timeout(timeout).GET().build();
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			Manager.logErr("Auth Error: Invalid auth url "+authurl);
+			breaker.recordFailure();
+			return CompletableFuture.completedFuture(0);
+		}
+		return client.sendAsync(request, java.net.http.HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8)).handle((response, error) -> {
+			if (error != null) {
+				breaker.recordFailure();
+				Manager.logErr("Auth Error: Can't get a response from "+authurl);
+				Manager.logErr(error.toString());
+				return 0;
+			}
+
+			// A server error says nothing about the token, so treat it like the auth service being down
+			if (response.statusCode() >= 500) {
+				breaker.recordFailure();
+				Manager.logErr("Auth Error: "+response.statusCode()+" response from "+authurl);
+				return 0;
+			}
+			breaker.recordSuccess();
+			AuthData ad;
+			try {
+				ad = new Gson().fromJson(response.body(), AuthData.class);
+			} catch (JsonParseException e) {
+				Manager.logErr("Auth Error: Invalid response from "+authurl);
+				return 0;
+			}
+			if (ad == null) ad = new AuthData();
+			if (response.statusCode() == 200) return ad.getId();
+
+			// If the authentication returned an error response, then the token is invalid.
+			Manager.log("Auth Error: "+ad.getError());
+			return null;
+		});
+	}
+
+	static class AuthData {
+		private int id;
+		private String error;
+		public AuthData() {
+		}
+		public int getId() {
+			 return id;
+		}
+		public String getError() {
+			return error;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A response body which has been generated once and is kept in memory, so it can be sent again without being regenerated
+ *
+ * Each body is stored along with a key describing the state it was generated from (eg the version of a service), so
+ * whoever keeps it can tell when it's out of date.  As a body is never changed once generated, it has a strong ETag,
+ * numbered from every body generated since the supervisor started.  That way a body generated again for the same key
+ * (such as after a template is edited) gets a new ETag.  The ETag also includes when the supervisor started, so a
+ * client's copy from an earlier run is never mistaken for the current one.
+ */
+class CachedOutput {
+	private static final String boot = Long.toHexString(System.currentTimeMillis());
+	private static final AtomicLong generated = new AtomicLong();
+	private final String key;
+	private final Object[] sources;
+	private final String etag;
+	private final String contentType;
+	private final byte[] content;
+
+	// The Content-Encoding of the body, or null if it's not encoded
+	private final String encoding;
+
+	// The gzipped version of this body, created the first time a client asks for it
+	private volatile CachedOutput gzipped = null;
+	private volatile boolean gzipFailed = false;
+
+	/**
+	 * @param String name What the body is of, which goes in its ETag
+	 * @param String key The state the body was generated from
+	 * @param String contentType The body's Content-type, including any charset
+	 * @param byte[] content The body itself
+	 * @param Object[] sources Anything else the body was generated from, such as templates, compared by identity
+	 */
+	public CachedOutput(String name, String key, String contentType, byte[] content, Object... sources) {
+		this.key = key;
+		this.sources = sources;
+		this.etag = "\"" + name + "-" + boot + "-" + generated.incrementAndGet() + "\"";
+		this.contentType = contentType;
+		this.content = content;
+		this.encoding = null;
+	}
+	private CachedOutput(CachedOutput original, byte[] content, String encoding) {
+		this.key = original.key;
+		this.sources = original.sources;
+		this.etag = original.etag.substring(0, original.etag.length() - 1) + "-" + encoding + "\"";
+		this.contentType = original.contentType;
+		this.content = content;
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Renders a template in full, to be kept
+	 *
+	 * @param Template template The template, with all its data set
+	 * @param String key The state the data was taken from, which must have been read before the data was
+	 * @param Object[] sources The compiled templates it was rendered from, so it can be rendered again if they're edited
+	 */
+	public static CachedOutput render(Template template, String key, Object... sources) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Writer writer = new OutputStreamWriter(output, "UTF-8");
+		template.writeTo(writer);
+		writer.close();
+		return new CachedOutput(template.getFileName(), key, HttpResponse.contentType(template.getFileName()) + "; charset=utf-8", output.toByteArray(), sources);
+	}
+
+	/**
+	 * Whether the body was generated from the given state, so can still be used
+	 */
+	public boolean isCurrent(String key, Object... sources) {
+		if (!this.key.equals(key) || this.sources.length != sources.length) return false;
+		for (int ii = 0; ii < sources.length; ii++) {
+			if (this.sources[ii] != sources[ii]) return false;
+		}
+		return true;
+	}
+	public String getETag() {
+		return etag;
+	}
+	public int getLength() {
+		return content.length;
+	}
+	public byte[] getContent() {
+		return content;
+	}
+
+	/**
+	 * Sets the headers which describe this body on a response
+	 * Browsers are asked to check back each time they use their copy, which is cheap as unchanged bodies get a 304
+	 */
+	public void setHeaders(HttpResponse response) {
+		response.setHeader("Content-type", contentType);
+		response.setHeader("ETag", etag);
+		response.setHeader("Cache-Control", "no-cache");
+		response.setHeader("Vary", "Accept-Encoding");
+		if (encoding != null) response.setHeader("Content-Encoding", encoding);
+	}
+
+	/**
+	 * Works out whether the client's copy is this one, based on its If-None-Match header
+	 */
+	public boolean isNotModified(String ifNoneMatch) {
+		if (ifNoneMatch == null) return false;
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) tag = tag.substring(2);
+			if (tag.equals("*") || tag.equals(etag)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets a gzipped version of this body, created the first time it's needed
+	 *
+	 * @returns CachedOutput null if the body is too small to be worth compressing, or can't be compressed
+	 */
+	public CachedOutput getGzipped() {
+		if (encoding != null || gzipFailed) return null;
+		CachedOutput variant = gzipped;
+		if (variant != null) return variant;
+		if (content.length < Manager.getIntSetting("compress_min_size", 1024)) {
+			gzipFailed = true;
+			return null;
+		}
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream(content.length / 2);
+			GZIPOutputStream gzip = new GZIPOutputStream(output);
+			gzip.write(content);
+			gzip.close();
+			variant = new CachedOutput(this, output.toByteArray(), "gzip");
+		} catch (IOException e) {
+			Manager.logErr("Can't compress response body");
+			Manager.logErr(e);
+			gzipFailed = true;
+			return null;
+		}
+		gzipped = variant;
+		return variant;
+	}
+}
@@ -0,0 +1,58 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * Stops calls to a failing dependency, so that requests fail fast instead of each waiting on it
+ *
+ * After failureThreshold failures in a row the breaker opens, and no calls are allowed for resetMillis.  After that,
+ * a single trial call is let through: if it succeeds the breaker closes again, otherwise it stays open for another period.
+ */
+class CircuitBreaker {
+	private final String name;
+	private final int failureThreshold;
+	private final long resetMillis;
+	private final AtomicInteger failures = new AtomicInteger();
+
+	// Zero whilst the breaker is closed
+	private final AtomicLong openedAt = new AtomicLong();
+	private final AtomicBoolean trialInProgress = new AtomicBoolean();
+	public CircuitBreaker(String name, int failureThreshold, long resetMillis) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.resetMillis = resetMillis;
+	}
+
+	/**
+	 * Whether a call should be made now
+	 * Callers which are allowed through must report back with recordSuccess or recordFailure
+	 */
+	public boolean allowRequest() {
+		long opened = openedAt.get();
+		if (opened == 0) return true;
+		if (System.currentTimeMillis() - opened < resetMillis) return false;
+
+		// Let just one caller find out whether the dependency has recovered
+		return trialInProgress.compareAndSet(false, true);
+	}
+
+	/**
+	 * Whether calls are currently being refused
+	 */
+	public boolean isOpen() {
+		long opened = openedAt.get();
+		return opened != 0 && System.currentTimeMillis() - opened < resetMillis;
+	}
+	public void recordSuccess() {
+		failures.set(0);
+		trialInProgress.set(false);
+		if (openedAt.getAndSet(0) != 0) Manager.log("Circuit breaker for " + name + " closed");
+	}
+	public void recordFailure() {
+		boolean trial = trialInProgress.getAndSet(false);
+		if (failures.incrementAndGet() < failureThreshold && !trial) return;
+		if (openedAt.getAndSet(System.currentTimeMillis()) == 0) Manager.logErr("Circuit breaker for " + name + " opened");
+	}
+	public String getState() {
+		if (openedAt.get() == 0) return "closed";
+		return isOpen() ? "open" : "half-open";
+	}
+}
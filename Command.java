@@ -1,13 +1,63 @@
 import java.util.* ;
+import java.util.concurrent.* ;
 import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
 class Command implements Runnable {
+
+	// Launches commands, and picks up after them when their processes exit, so no thread waits on any one process
+	private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Manager.getIntSetting("supervisor_threads", 2), new ThreadFactory() {
+		private int count = 0;
+		public synchronized Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "supervisor-" + (++count));
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * The supervisor's threads, for picking up after commands without holding up whichever thread they finished on
+	 */
+	static ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	// The reaper keeps track of the descendants of commands with processes running
+	static {
+		long interval = Manager.getIntSetting("reaper_interval", 30);
+		if (interval > 0) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					for (Command command : ShutdownCoordinator.getLive()) {
+						command.reap();
+					}
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+		}
+	}
 	protected Service service;
 	private String cmd;
 	protected String name;
-	private boolean run = false;  // Whether the command should be running
-	private boolean running = false; // Whether the command is running
+	private volatile boolean run = false;  // Whether the command should be running
+	private volatile boolean running = false; // Whether the command is running
 	private boolean isMain;
-	private Process currentProcess;
+	private volatile Process currentProcess;
+
+	// For deciding when to restart
+	private volatile long startedAt = 0;
+	private volatile int failures = 0;
+	private volatile boolean killed = false;
+	private volatile ScheduledFuture<?> pendingRestart = null;
+
+	// Completes once the processes being stopped by kill() have all gone
+	private volatile CompletableFuture<Void> stopping = null;
+
+	// Operations waiting for the command's next process to start, and for its current one to finish
+	private final List<CompletableFuture<Void>> startWaiters = new ArrayList<CompletableFuture<Void>>();
+	private final List<CompletableFuture<Void>> finishWaiters = new ArrayList<CompletableFuture<Void>>();
+
+	// The processes started by the current process, as of the reaper's last look
+	private final Set<ProcessHandle> descendants = new HashSet<ProcessHandle>();
 	public Command(Service service, String cmd, String name) {
 		this.service = service;
 		this.cmd = cmd;
@@ -24,136 +74,367 @@ class Command implements Runnable {
 	public void run() {
 		
 		// Don't let each command run more than once concurrently
-		if (isRunning()) return;
-		do {
+		synchronized (this) {
+			if (running) return;
+			running = true;
+		}
+		runningChanged();
+		launch();
+	}
+
+	/**
+	 * Lets the service know its main command has started or stopped, so that pages showing whether it's running are updated
+	 */
+	private void runningChanged() {
+		if (isMain) service.stateChanged(true);
+	}
+
+	/**
+	 * Starts the command's process, arranging for exited() to be called once it's finished
+	 */
+	private void launch() {
+		
+		// Pass port and domain of this service to the command if neccessary.
+		String populatedcmd = cmd.replace("%p", Integer.toString(service.getPort())).replace("%d", Manager.servicesDomain());
+		final Process process;
+		final CompletableFuture<Void> output;
+
+		// Nothing new gets started once the supervisor is on its way down
+		if (ShutdownCoordinator.isShuttingDown()) {
+			synchronized (this) {
+				running = false;
+			}
+			runningChanged();
+			started(new IllegalStateException("Shutting down"));
+			finished();
+			return;
+		}
+		try {
+
+			// Split the command into arguments on whitespace, as Runtime.exec does
+			StringTokenizer tokens = new StringTokenizer(populatedcmd);
+			String[] args = new String[tokens.countTokens()];
+			for (int ii = 0; ii < args.length; ii++) args[ii] = tokens.nextToken();
+			ProcessBuilder builder = new ProcessBuilder(args).directory(service.getWorkingDir());
+			boolean redirected = service.redirectOutput(builder);
+			process = builder.start();
 			
-			// Pass port and domain of this service to the command if neccessary.
-			String populatedcmd = cmd.replace("%p", Integer.toString(service.getPort())).replace("%d", Manager.servicesDomain());
-			try {
-				final Process process = Runtime.getRuntime().exec(populatedcmd, null, service.getWorkingDir());
-				running = true;
-				currentProcess = process;
-				
-				final BufferedReader stdInput = new BufferedReader(new InputStreamReader(process.getInputStream()));
-				final BufferedReader stdError = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-				try {
-					
-					
-					// Destroy the command's process on shutdown
-					Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
-						public void run() {
-							service.log("Stopping command "+name);
-							process.destroy();
-							try {
-								stdInput.close();
-							} catch (IOException e) {
-								Manager.logErr("Failed to close stdInput for "+name);
-								Manager.logErr(e);
-							}
-							try {
-								stdError.close();
-							} catch (IOException e) {
-								Manager.logErr("Failed to close stdError for "+name);
-								Manager.logErr(e);
-							}
-							
-							
-							running = false;
-						}
-					}));
-					
-					new Thread(new Runnable() {
-						public void run() {
-							try {
-								String s = null;
-								while ((s = stdInput.readLine()) != null) {
-									service.log(s);
-								}
-							} catch (IOException e) {
-								service.logErr("Can't read from "+name+", IOException.");
-								service.logErr(e);
-							}
-						}
-					}).start();
-					
-					new Thread(new Runnable() {  
-						public void run() {
-							try {
-								String s = null;
-								while ((s = stdError.readLine()) != null) {
-									service.logErr(s);
-								}
-							} catch (IOException e) {
-								service.logErr("Can't read err from "+name+", IOException.");
-								service.logErr(e);
-							}
-						}
-					}).start();
-					
-					
-					process.waitFor();
-					service.log("Command "+name+" completed");
-				} catch (IllegalStateException e) {
-					
-					// This occurs when the JVM is shutting down, in which case don't bother trying to do anything afterwards
-					return;
-				} catch (InterruptedException e) {
-					service.logErr("Command "+name+" interrupted");
-					service.logErr(e);
-				}
+			// The process's output is read by the pump, which is shared by all processes, unless it's going straight to a file
+			if (redirected) output = CompletableFuture.completedFuture(null);
+			else output = OutputPump.get().attach(process, service, name);
+		} catch (IOException | RuntimeException e) {
+			service.logErr("Process "+name+" didn't load due to "+e.getClass().getSimpleName());
+			service.logErr(e.toString());
+			completed(false);
+			Map<String, Object> details = describe();
+			details.put("reason", e.toString());
+			EventBus.publish("startfailed", service, details);
+			synchronized (this) {
+				startedAt = System.currentTimeMillis();
 				running = false;
-				
-				// Tidy up the old process and any pipes left open before doing anything else
-				process.destroy();
-				try {
-					stdInput.close();
-				} catch (IOException e) {
-					Manager.logErr("Failed to close stdInput for "+name);
-					Manager.logErr(e);
-				}
-				try {
-					stdError.close();
-				} catch (IOException e) {
-					Manager.logErr("Failed to close stdError for "+name);
-					Manager.logErr(e);
+			}
+			runningChanged();
+			started(e);
+			scheduleRestart();
+			finished();
+			return;
+		}
+		synchronized (this) {
+			currentProcess = process;
+			startedAt = System.currentTimeMillis();
+			killed = false;
+		}
+
+		// The shutdown coordinator stops the process if the supervisor shuts down whilst it's running
+		ShutdownCoordinator.register(this);
+		started(null);
+		Map<String, Object> details = describe();
+		details.put("pid", process.pid());
+		EventBus.publish("started", service, details);
+
+		// Wait for the last of the output too, so it's logged before the command is reported as completed
+		CompletableFuture.allOf(process.onExit(), output).thenRunAsync(new Runnable() {
+			public void run() {
+				exited(process);
+			}
+		}, scheduler);
+	}
+
+	/**
+	 * Tidies up after the command's process has exited, restarting it if it's meant to keep running
+	 */
+	private void exited(Process process) {
+		service.log("Command "+name+" completed (exit code "+process.exitValue()+")");
+		completed(process.exitValue() == 0);
+
+		// Tidy up the old process before doing anything else (the pump closes its pipes once they're finished with)
+		process.destroy();
+		ShutdownCoordinator.unregister(this);
+		CompletableFuture<Void> cleanup;
+		List<ProcessHandle> orphans = new ArrayList<ProcessHandle>();
+		synchronized (this) {
+			cleanup = (stopping != null) ? stopping : CompletableFuture.completedFuture(null);
+			stopping = null;
+
+			// If the command wasn't killed, anything it started which is still running has been orphaned
+			if (!killed) {
+				for (ProcessHandle descendant : descendants) {
+					if (descendant.isAlive()) orphans.add(descendant);
 				}
-			} catch (IOException e) {
-				service.logErr("Process "+name+" didn't load due to IOException");
-				service.logErr(e);
 			}
-			if (run) {
-				if (isMain) Manager.log("Service "+name+" stopped, restarting in 30 seconds...");
-				try {
-					Thread.sleep(30*1000);
-				} catch (InterruptedException e) {
-					Manager.logErr("Sleep interrupted, going straight to restart...");
-					Manager.logErr(e);
+			descendants.clear();
+		}
+		if (!orphans.isEmpty()) {
+			service.logErr("Command "+name+" left processes running after it exited, stopping them: "+ProcessTree.pids(orphans));
+			cleanup = CompletableFuture.allOf(cleanup, ProcessTree.terminate(ProcessTree.list(orphans), gracePeriod(), scheduler, service));
+		}
+
+		// Only count the command as stopped once everything it started has gone, so a restart can't clash with what's left
+		final int exitCode = process.exitValue();
+		cleanup.whenCompleteAsync((result, error) -> {
+			synchronized (Command.this) {
+				currentProcess = null;
+				running = false;
+			}
+			runningChanged();
+			Map<String, Object> details = describe();
+			details.put("exitcode", exitCode);
+			details.put("killed", killed);
+			EventBus.publish("exited", service, details);
+			scheduleRestart();
+			finished();
+		}, scheduler);
+	}
+
+	/**
+	 * Notes which processes the command has started, and stops any which have been orphaned
+	 * A process which was a descendant but no longer is has been left behind by a parent which exited, such as a shell which
+	 * started something in the background
+	 */
+	private void reap() {
+		List<ProcessHandle> orphans = new ArrayList<ProcessHandle>();
+		synchronized (this) {
+			if (currentProcess == null || killed) return;
+			ProcessHandle root = currentProcess.toHandle();
+			Set<ProcessHandle> current = ProcessTree.list(root);
+			current.remove(root);
+			for (ProcessHandle descendant : descendants) {
+				if (descendant.isAlive() && !current.contains(descendant)) orphans.add(descendant);
+			}
+			descendants.clear();
+			descendants.addAll(current);
+		}
+		if (orphans.isEmpty()) return;
+		service.logErr("Found processes orphaned by command "+name+", stopping them: "+ProcessTree.pids(orphans));
+		ProcessTree.terminate(ProcessTree.list(orphans), gracePeriod(), scheduler, service);
+	}
+
+	/**
+	 * How long to give processes to stop by themselves before killing them, in milliseconds
+	 */
+	private static long gracePeriod() {
+		return Manager.getIntSetting("kill_grace_period", 10) * 1000L;
+	}
+
+	/**
+	 * Restarts the command if it should be kept running, waiting as long as the service's restart policy says
+	 */
+	private synchronized void scheduleRestart() {
+		if (!run || ShutdownCoordinator.isShuttingDown()) return;
+		RestartPolicy policy = service.getRestartPolicy();
+		long delay;
+		if (killed) {
+
+			// It was stopped on purpose (eg by the restart command), so start it again straight away
+			failures = 0;
+			delay = 0;
+		} else {
+			long uptime = System.currentTimeMillis() - startedAt;
+			failures = policy.isStable(uptime) ? 0 : failures + 1;
+			if (policy.isCrashLoop(failures)) {
+				run = false;
+				service.logErr("Command "+name+" has failed "+failures+" times in a row, not restarting it again until it's started by hand");
+				Map<String, Object> details = describe();
+				details.put("failures", failures);
+				EventBus.publish("crashloop", service, details);
+				return;
+			}
+			delay = policy.getDelay(failures);
+			if (isMain) Manager.log("Service "+name+" stopped, restarting in "+(delay / 1000.0)+" seconds...");
+		}
+		Map<String, Object> details = describe();
+		details.put("delay", delay);
+		details.put("failures", failures);
+		EventBus.publish("restartscheduled", service, details);
+		pendingRestart = scheduler.schedule(new Runnable() {
+			public void run() {
+				synchronized (Command.this) {
+					pendingRestart = null;
+					if (!run || running) return;
+					running = true;
 				}
+				runningChanged();
+				launch();
 			}
-		} while (run);
+		}, delay, TimeUnit.MILLISECONDS);
 	}
 	public String getName() {
 		return name;
 	}
+	public Service getService() {
+		return service;
+	}
+
+	/**
+	 * The details of the command to include in events about it
+	 */
+	private Map<String, Object> describe() {
+		Map<String, Object> details = new LinkedHashMap<String, Object>();
+		details.put("command", name);
+		details.put("main", isMain);
+		return details;
+	}
 	public boolean isRunning() {
 		return running;
 	}
+
+
+	/**
+	 * Called each time the command's process exits (or fails to start), for subclasses which care whether it worked
+	 *
+	 * @param boolean succeeded Whether the process exited with a status of zero
+	 */
+	protected void completed(boolean succeeded) {
+	}
+
+	/**
+	 * Lets anything waiting for a process to start know how it went
+	 *
+	 * @param Exception error Why the process didn't start, or null if it did
+	 */
+	private void started(Exception error) {
+		List<CompletableFuture<Void>> waiters;
+		synchronized (this) {
+			waiters = new ArrayList<CompletableFuture<Void>>(startWaiters);
+			startWaiters.clear();
+		}
+		for (CompletableFuture<Void> waiter : waiters) {
+			if (error == null) waiter.complete(null);
+			else waiter.completeExceptionally(error);
+		}
+	}
+
+	/**
+	 * Lets anything waiting for the process to finish (or fail to start) know that it has
+	 * The waiters are completed outside the lock, as they may go on to start other operations
+	 */
+	private void finished() {
+		List<CompletableFuture<Void>> waiters;
+		synchronized (this) {
+			waiters = new ArrayList<CompletableFuture<Void>>(finishWaiters);
+			finishWaiters.clear();
+		}
+		for (CompletableFuture<Void> waiter : waiters) {
+			waiter.complete(null);
+		}
+	}
 	public void runOnce() {
 		exec(false);
 	}
 	public void keepRunning() {
 		exec(true);
 	}
+
+	/**
+	 * Starts the command, if it isn't running already
+	 *
+	 * @param boolean keepRunning Whether to restart the command whenever it stops
+	 * @returns CompletableFuture<Void> Completes once the command's process has started, or fails if it couldn't be
+	 */
+	public CompletableFuture<Void> start(boolean keepRunning) {
+		CompletableFuture<Void> started = new CompletableFuture<Void>();
+		synchronized (this) {
+			if (running) started.complete(null);
+			else startWaiters.add(started);
+		}
+		exec(keepRunning);
+		return started;
+	}
+
+	/**
+	 * Stops the command, along with everything it started
+	 *
+	 * @returns CompletableFuture<Void> Completes once the command has stopped, and is ready to be started again
+	 */
+	public CompletableFuture<Void> stop() {
+		CompletableFuture<Void> stopped = new CompletableFuture<Void>();
+		synchronized (this) {
+			kill();
+			if (running) finishWaiters.add(stopped);
+			else stopped.complete(null);
+		}
+		return stopped;
+	}
+
+	/**
+	 * Runs the command as one of its service's queued operations
+	 * Commands which don't start a process run on the supervisor's threads, whilst those that do are waited on until their process finishes
+	 *
+	 * @returns CompletableFuture<Void> Completes once the command has finished
+	 */
+	public CompletableFuture<Void> operate() {
+		if (cmd == null) return CompletableFuture.runAsync(this, scheduler);
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		synchronized (this) {
+			if (running) done.complete(null);
+			else finishWaiters.add(done);
+		}
+		exec(false);
+		return done;
+	}
 	public void exec(boolean keepRunning) {
-		run = keepRunning;
-		Thread thread = new Thread(this);
-		thread.start();
+		synchronized (this) {
+			run = keepRunning;
+
+			// Being started by hand gives a crash looping command a fresh start
+			failures = 0;
+		}
+		scheduler.execute(this);
 	}
-	public void kill() {
+	public synchronized void kill() {
+		if (terminate()) Manager.log("Process "+name+" killed");
+	}
+
+	/**
+	 * Stops the command for good as the supervisor shuts down
+	 *
+	 * @returns CompletableFuture<Void> Completes once the command's process and everything it started have exited
+	 */
+	public synchronized CompletableFuture<Void> shutDown() {
+		terminate();
+		if (stopping == null) return CompletableFuture.completedFuture(null);
+		return stopping;
+	}
+
+	/**
+	 * Cancels any pending restart and stops the command's process, if it has one
+	 *
+	 * @returns boolean Whether there was a process to stop
+	 */
+	private synchronized boolean terminate() {
 		run = false;
-		if (!isRunning()) return;
-		currentProcess.destroy();
-		Manager.log("Process "+name+" killed");
+		if (pendingRestart != null) {
+			pendingRestart.cancel(false);
+			pendingRestart = null;
+		}
+		if (!isRunning() || currentProcess == null) return false;
+		killed = true;
+
+		// Stop everything the command started too, including anything the reaper saw which has since been orphaned
+		Set<ProcessHandle> processes = ProcessTree.list(currentProcess.toHandle());
+		processes.addAll(descendants);
+		stopping = ProcessTree.terminate(processes, gracePeriod(), scheduler, service);
+		return true;
 	}
 	
 	/**
@@ -176,7 +457,10 @@ class StartCommand extends Command {
 		super(service, null, "Start");
 	}
 	public void run() {
-		service.execCommand("main", true);
+		operate();
+	}
+	public CompletableFuture<Void> operate() {
+		return service.startCommand("main", true);
 	}
 }
 
@@ -185,7 +469,10 @@ class StopCommand extends Command {
 		super(service, null, "Stop");
 	}
 	public void run() {
-		service.stopCommand("main");
+		operate();
+	}
+	public CompletableFuture<Void> operate() {
+		return service.stopCommand("main");
 	}
 }
 
@@ -194,8 +481,12 @@ class RestartCommand extends Command {
 		super(service, null, "Restart");
 	}
 	public void run() {
-		service.stopCommand("main");
-		service.execCommand("main", true);
+		operate();
+	}
+
+	// Wait for the old process to be gone before starting the new one
+	public CompletableFuture<Void> operate() {
+		return service.stopCommand("main").thenCompose(nothing -> service.startCommand("main", true));
 	}
 }
 
@@ -230,18 +521,74 @@ class ReloadServiceListCommand extends Command {
 }
 
 class UpdateVarnishCommand extends Command {
+
+	// Whether the last reload failed, in which case varnish may not have the VCL that's on disk
+	private volatile boolean reloadFailed = false;
 	public UpdateVarnishCommand(Service service) {
 		super(service, "sudo /usr/sbin/service varnish reload", "Update Varnish");
 	}
-	public void run() {
+
+	/**
+	 * Writes out the VCL, only reloading varnish if it's changed
+	 */
+	public CompletableFuture<Void> operate() {
 		try {
-			Template vcl = Service.getVCL();
-			PrintWriter output = new PrintWriter(Manager.getSetting("vcl_path", "services.vcl"));
-			output.println(vcl.toString());
-			output.close();
-		} catch (FileNotFoundException e) {
+			if (!writeVCL() && !reloadFailed) return CompletableFuture.completedFuture(null);
+		} catch (IOException e) {
 			Manager.logErr(e);
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return super.operate();
+	}
+	protected void completed(boolean succeeded) {
+		reloadFailed = !succeeded;
+	}
+
+	/**
+	 * Compares the VCL with what's already on disk, and replaces the file if they differ
+	 * The new file is written alongside the old one then renamed over it, so varnish never sees a half written file
+	 *
+	 * @returns boolean Whether the file was changed
+	 */
+	private boolean writeVCL() throws IOException {
+		Template template = Service.getVCL();
+		if (template == null) throw new IOException("Can't render VCL");
+		byte[] vcl = (template.toString() + System.lineSeparator()).getBytes("UTF-8");
+		Path path = Paths.get(Manager.getSetting("vcl_path", "services.vcl")).toAbsolutePath();
+		if (Files.isRegularFile(path) && Arrays.equals(Files.readAllBytes(path), vcl)) return false;
+		Path temp = null;
+		try {
+			temp = Files.createTempFile(path.getParent(), "." + path.getFileName(), ".tmp");
+		} catch (AccessDeniedException e) {
+			// Without write access to the directory, the file can only be rewritten where it is
+		}
+		try {
+
+			// Replacing a file which belongs to someone else would take it over, so that's rewritten where it is too
+			if (temp == null || (Files.exists(path) && !Files.getOwner(path).equals(Files.getOwner(temp)))) {
+				Files.write(path, vcl);
+			} else {
+				Files.write(temp, vcl);
+
+				// Keep the permissions the file already had, rather than the temp file's private ones
+				try {
+					if (Files.exists(path)) Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(path));
+					else Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-r--r--"));
+				} catch (UnsupportedOperationException e) {
+					// Not a posix filesystem, so go with the defaults
+				}
+				try {
+					Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		} finally {
+			if (temp != null) Files.deleteIfExists(temp);
 		}
-		super.run();
+		service.log("Updated VCL");
+		return true;
 	}
 }
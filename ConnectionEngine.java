@@ -0,0 +1,125 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts HTTP connections and hands each one to a worker
+ *
+ * The number of connections being handled at once is capped by http_concurrency.  Once every slot is taken, the
+ * acceptor stops accepting, so further clients wait in the listen backlog (http_backlog) rather than each getting a thread.
+ * Connections which were put aside to wait for something don't hold a slot whilst they wait, and queue for one to resume.
+ */
+class ConnectionEngine implements Executor {
+	private final ServerSocketChannel serverChannel;
+	private final ExecutorService workers;
+	private final Semaphore slots;
+
+	// Connections ready to resume, waiting for a free slot
+	private final Queue<Runnable> resuming = new ConcurrentLinkedQueue<Runnable>();
+	public ConnectionEngine(int port) throws IOException {
+		int concurrency = Manager.getIntSetting("http_concurrency", 32);
+		int backlog = Manager.getIntSetting("http_backlog", 50);
+
+		// Use a channel rather than a plain ServerSocket, so that accepted sockets have channels of their own
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port), backlog);
+		slots = new Semaphore(concurrency);
+		workers = createWorkers(Manager.getSetting("http_engine", "pool"), concurrency);
+	}
+
+	/**
+	 * Creates the executor which runs the connections
+	 *
+	 * "virtual" uses a virtual thread per connection where the JVM supports them, anything else uses a fixed pool of platform threads.
+	 * Either way, concurrency is bounded by the slots semaphore.
+	 */
+	private static ExecutorService createWorkers(String engine, int concurrency) {
+		if (engine.equals("virtual")) {
+			try {
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				Manager.logErr("Virtual threads aren't available in this JVM, falling back to a thread pool");
+			}
+		}
+		final AtomicInteger threadCount = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, "http-" + threadCount.incrementAndGet());
+			}
+		});
+
+		// Let idle threads die off, so a burst of traffic doesn't leave the pool at full size
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Accepts connections in an infinite loop
+	 */
+	public void serve() throws IOException {
+		while (true) {
+
+			// Wait for a free slot before accepting, so excess connections queue up in the kernel instead of in the JVM
+			slots.acquireUninterruptibly();
+			Socket clientSocket;
+			try {
+				clientSocket = serverChannel.accept().socket();
+			} catch (IOException e) {
+				slots.release();
+				Manager.logErr("Failed to accept connection");
+				Manager.logErr(e);
+				continue;
+			}
+			execute(new HttpRequest(clientSocket));
+		}
+	}
+
+	/**
+	 * Whether every connection slot is currently in use
+	 */
+	public boolean isSaturated() {
+		return slots.availablePermits() == 0;
+	}
+
+	/**
+	 * Runs a task which has already been given a slot, freeing that slot once the task finishes
+	 */
+	public void execute(final Runnable task) {
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						slots.release();
+						resumeWaiting();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			slots.release();
+			Manager.logErr("Connection rejected by worker pool");
+		}
+	}
+
+	/**
+	 * Carries on with a connection which was put aside, as soon as there's a slot for it
+	 */
+	public void resume(Runnable task) {
+		resuming.add(task);
+		resumeWaiting();
+	}
+	private void resumeWaiting() {
+		while (!resuming.isEmpty() && slots.tryAcquire()) {
+			Runnable task = resuming.poll();
+			if (task == null) {
+				slots.release();
+				return;
+			}
+			execute(task);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import com.google.gson.Gson;
+
+/**
+ * Announces changes to services, such as commands starting and exiting, to anyone watching /api/events
+ *
+ * Every event has an id one higher than the last, and the most recent events_history of them are kept in memory.  A client
+ * which reconnects with the id of the last event it saw is sent everything it missed before carrying on with new events.
+ * If it's missed more than is kept, it's sent a "reset" event instead, to let it know it needs to start afresh.
+ */
+class EventBus {
+	private static final EventStream stream = new EventStream();
+	private static final int historyLength = Math.max(1, Manager.getIntSetting("events_history", 500));
+	private static final ArrayDeque<Event> history = new ArrayDeque<Event>();
+	private static long lastId = 0;
+
+	/**
+	 * An event which has been published, kept for replaying
+	 */
+	private static class Event {
+		final long id;
+		final ByteBuffer encoded;
+		Event(long id, ByteBuffer encoded) {
+			this.id = id;
+			this.encoded = encoded;
+		}
+	}
+
+	/**
+	 * Announces something that's happened to a service
+	 *
+	 * Along with any details given, each event includes whether the service is running and has errors, so a watcher can
+	 * show the service's current state from the event alone.
+	 *
+	 * @param String type What happened, eg "started" or "exited"
+	 * @param Service service The service it happened to
+	 * @param Map<String, Object> details Anything else about the event, or null
+	 */
+	public static void publish(String type, Service service, Map<String, Object> details) {
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+		data.put("type", type);
+		data.put("service", service.getId());
+		data.put("time", System.currentTimeMillis());
+		data.put("running", service.isRunning());
+		data.put("error", service.hasError());
+		if (details != null) data.putAll(details);
+		synchronized (EventBus.class) {
+			long id = ++lastId;
+			data.put("id", id);
+			ByteBuffer encoded = EventStream.encode(type, Long.toString(id), new Gson().toJson(data));
+			history.add(new Event(id, encoded));
+			if (history.size() > historyLength) history.poll();
+
+			// Publishing whilst holding the lock means subscribers can't join between an event being kept and being sent
+			stream.publish(encoded);
+		}
+	}
+	public static void publish(String type, Service service) {
+		publish(type, service, null);
+	}
+
+	/**
+	 * The id of the latest event, which pages can pass back when subscribing so they don't miss anything
+	 */
+	public static synchronized long getLastId() {
+		return lastId;
+	}
+	public static boolean isFull() {
+		return EventStream.isFull();
+	}
+
+	/**
+	 * Hands a connection over to receive events, first replaying any it's missed
+	 *
+	 * @param long since The id of the last event the client saw, or -1 to only send new events
+	 * @returns boolean false if there are too many subscribers, in which case the caller still owns the connection
+	 */
+	public static synchronized boolean subscribe(SocketChannel channel, long since) {
+		List<ByteBuffer> backlog = new ArrayList<ByteBuffer>();
+		if (since >= 0 && since != lastId) {
+
+			// An id from the future means the supervisor has restarted since the client last saw an event
+			Event oldest = history.peek();
+			if (since > lastId || oldest == null || oldest.id > since + 1) {
+				backlog.add(EventStream.encode("reset", Long.toString(lastId), Long.toString(lastId)));
+			} else {
+				for (Event event : history) {
+					if (event.id > since) backlog.add(event.encoded);
+				}
+			}
+		}
+		return stream.subscribe(channel, backlog);
+	}
+}
@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Pushes server-sent events to any number of subscribed connections
+ *
+ * Once a client subscribes, its connection is handed over from the worker which handled its request to a single dispatcher
+ * thread, which writes to the subscribers of every stream using non-blocking IO, so watchers don't each hold a thread.
+ * Each event is encoded once and shared between subscribers.  Every subscriber has a bounded queue of events waiting to be
+ * sent; if a client falls too far behind, further events are dropped for it, and once there's room again it's sent a
+ * "dropped" event saying how many it missed.
+ */
+class EventStream {
+	private static final int maxSubscribers = Manager.getIntSetting("sse_max_subscribers", 1000);
+	private static final int queueLength = Math.max(2, Manager.getIntSetting("sse_queue_length", 256));
+	private static final AtomicInteger totalSubscribers = new AtomicInteger();
+	private static Dispatcher dispatcher = null;
+	private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Whether there's anyone to send events to, so callers can avoid building events no one will receive
+	 */
+	public boolean hasSubscribers() {
+		return !subscribers.isEmpty();
+	}
+
+	/**
+	 * Whether the limit on subscribers across all streams has been reached
+	 */
+	public static boolean isFull() {
+		return totalSubscribers.get() >= maxSubscribers;
+	}
+
+	/**
+	 * Sends an event to everyone subscribed to this stream
+	 *
+	 * @param String event The event's type, or null for a plain message
+	 * @param String id The event's id, or null if it doesn't have one
+	 * @param String data The event's data, which may span several lines
+	 */
+	public void publish(String event, String id, String data) {
+		if (subscribers.isEmpty()) return;
+		publish(encode(event, id, data));
+	}
+
+	/**
+	 * Sends an event which has already been encoded, eg so it can also be kept for sending again later
+	 */
+	public void publish(ByteBuffer encoded) {
+		if (subscribers.isEmpty()) return;
+		published.incrementAndGet();
+		for (Subscriber subscriber : subscribers) {
+			if (!subscriber.offer(encoded)) dropped.incrementAndGet();
+			getDispatcher().schedule(subscriber);
+		}
+	}
+
+	/**
+	 * Hands a connection over to this stream, which will send it events until either end closes it
+	 * The response headers must already have been sent
+	 *
+	 * @returns boolean false if there are already too many subscribers, in which case the caller still owns the connection
+	 */
+	public boolean subscribe(SocketChannel channel) {
+		return subscribe(channel, Collections.<ByteBuffer>emptyList());
+	}
+
+	/**
+	 * Hands a connection over to this stream, sending it some earlier events before any new ones
+	 *
+	 * @param List<ByteBuffer> backlog Encoded events to send first, such as ones the client missed whilst disconnected
+	 * @returns boolean false if there are already too many subscribers, in which case the caller still owns the connection
+	 */
+	public boolean subscribe(SocketChannel channel, List<ByteBuffer> backlog) {
+		if (totalSubscribers.incrementAndGet() > maxSubscribers) {
+			totalSubscribers.decrementAndGet();
+			return false;
+		}
+		Subscriber subscriber = new Subscriber(this, channel);
+		for (ByteBuffer event : backlog) {
+			subscriber.offer(event);
+		}
+		subscribers.add(subscriber);
+		getDispatcher().register(subscriber);
+		return true;
+	}
+
+	/**
+	 * Returns counters describing the stream's subscribers and how many events they've missed
+	 */
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("subscribers", (long)subscribers.size());
+		stats.put("published", published.get());
+		stats.put("dropped", dropped.get());
+		return stats;
+	}
+
+	/**
+	 * Encodes an event in the text/event-stream format
+	 */
+	static ByteBuffer encode(String event, String id, String data) {
+		StringBuilder text = new StringBuilder(data.length() + 32);
+		if (event != null) text.append("event: ").append(event).append('\n');
+		if (id != null) text.append("id: ").append(id).append('\n');
+		for (String line : data.split("\r\n|\r|\n", -1)) {
+			text.append("data: ").append(line).append('\n');
+		}
+		text.append('\n');
+		return ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+	}
+
+	private static synchronized Dispatcher getDispatcher() {
+		if (dispatcher == null) {
+			try {
+				dispatcher = new Dispatcher();
+			} catch (IOException e) {
+				throw new RuntimeException("Can't open selector for event streams", e);
+			}
+			dispatcher.start();
+		}
+		return dispatcher;
+	}
+
+	/**
+	 * A single connection subscribed to a stream
+	 */
+	private static class Subscriber {
+		final EventStream stream;
+		final SocketChannel channel;
+		SelectionKey key = null;
+
+		// Each subscriber gets its own view of shared buffers, so that they can each be partway through writing them
+		private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+		private long missed = 0;
+		private boolean closed = false;
+
+		// Set whilst the subscriber is waiting for the dispatcher to write to it, so it's only queued up once
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		Subscriber(EventStream stream, SocketChannel channel) {
+			this.stream = stream;
+			this.channel = channel;
+		}
+
+		/**
+		 * Queues an event to be sent
+		 *
+		 * @returns boolean false if the queue is full, so the event was dropped
+		 */
+		synchronized boolean offer(ByteBuffer event) {
+			if (closed) return true;
+			if (queue.size() >= queueLength) {
+				missed++;
+				return false;
+			}
+
+			// Once there's room, let the client know what it missed before carrying on
+			if (missed > 0) {
+				if (queue.size() >= queueLength - 1) {
+					missed++;
+					return false;
+				}
+				queue.add(encode("dropped", null, Long.toString(missed)));
+				missed = 0;
+			}
+			queue.add(event.duplicate());
+			return true;
+		}
+
+		synchronized boolean isIdle() {
+			return queue.isEmpty();
+		}
+
+		/**
+		 * Writes as much of the queue as the connection will take without blocking
+		 *
+		 * @returns boolean Whether everything queued has been written
+		 */
+		synchronized boolean flush() throws IOException {
+			while (!queue.isEmpty()) {
+				ByteBuffer next = queue.peek();
+				channel.write(next);
+				if (next.hasRemaining()) return false;
+				queue.poll();
+			}
+			return true;
+		}
+		void close() {
+			synchronized (this) {
+				if (closed) return;
+				closed = true;
+				queue.clear();
+			}
+			stream.subscribers.remove(this);
+			totalSubscribers.decrementAndGet();
+			if (key != null) key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// The connection is being abandoned anyway
+			}
+		}
+	}
+
+	/**
+	 * The thread which writes to all the subscribers
+	 */
+	private static class Dispatcher extends Thread {
+		private final Selector selector;
+		private final Queue<Subscriber> registrations = new ConcurrentLinkedQueue<Subscriber>();
+		private final Queue<Subscriber> ready = new ConcurrentLinkedQueue<Subscriber>();
+		private final long heartbeatInterval = Manager.getIntSetting("sse_heartbeat", 15) * 1000L;
+		private final ByteBuffer heartbeat = ByteBuffer.wrap(":\n\n".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+		private final ByteBuffer scratch = ByteBuffer.allocate(1024);
+		Dispatcher() throws IOException {
+			super("event-dispatcher");
+			setDaemon(true);
+			selector = Selector.open();
+		}
+		void register(Subscriber subscriber) {
+			registrations.add(subscriber);
+			selector.wakeup();
+		}
+		void schedule(Subscriber subscriber) {
+			if (subscriber.scheduled.compareAndSet(false, true)) {
+				ready.add(subscriber);
+				selector.wakeup();
+			}
+		}
+		public void run() {
+			long lastHeartbeat = System.currentTimeMillis();
+			while (true) {
+				try {
+					selector.select(heartbeatInterval);
+					Subscriber subscriber;
+					while ((subscriber = registrations.poll()) != null) {
+						try {
+							subscriber.channel.configureBlocking(false);
+							subscriber.key = subscriber.channel.register(selector, SelectionKey.OP_READ, subscriber);
+
+							// Send anything published whilst the subscriber was waiting to be registered
+							write(subscriber);
+						} catch (IOException e) {
+							subscriber.close();
+						}
+					}
+					while ((subscriber = ready.poll()) != null) {
+						subscriber.scheduled.set(false);
+						write(subscriber);
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						subscriber = (Subscriber)key.attachment();
+						if (key.isValid() && key.isReadable()) read(subscriber);
+						if (key.isValid() && key.isWritable()) write(subscriber);
+					}
+
+					// Send a comment to idle connections every so often, so that dead ones get noticed and proxies don't time them out
+					long now = System.currentTimeMillis();
+					if (now - lastHeartbeat >= heartbeatInterval) {
+						lastHeartbeat = now;
+						for (SelectionKey key : selector.keys()) {
+							if (!key.isValid()) continue;
+							subscriber = (Subscriber)key.attachment();
+							if (subscriber.isIdle()) {
+								subscriber.offer(heartbeat);
+								write(subscriber);
+							}
+						}
+					}
+				} catch (IOException | RuntimeException e) {
+					Manager.logErr("Error dispatching events");
+					Manager.logErr(e.toString());
+				}
+			}
+		}
+
+		/**
+		 * Discards anything the client sends, closing the subscription if the client has gone away
+		 */
+		private void read(Subscriber subscriber) {
+			try {
+				scratch.clear();
+				if (subscriber.channel.read(scratch) == -1) subscriber.close();
+			} catch (IOException e) {
+				subscriber.close();
+			}
+		}
+		private void write(Subscriber subscriber) {
+			SelectionKey key = subscriber.key;
+			if (key == null || !key.isValid()) return;
+			try {
+
+				// Only ask to hear when the connection is writable whilst there's something waiting to be written
+				if (subscriber.flush()) key.interestOps(SelectionKey.OP_READ);
+				else key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			} catch (IOException | CancelledKeyException e) {
+				subscriber.close();
+			}
+		}
+	}
+}
@@ -1,285 +1,569 @@
 import java.io.* ;
 import java.net.* ;
-import java.util.* ; 
-import com.google.gson.*;
+import java.util.* ;
+import java.util.concurrent.CompletableFuture ;
+import java.util.concurrent.RejectedExecutionException ;
 
 final class HttpRequest implements Runnable {
-    Socket socket;
-    Map<String, String> header = new HashMap<String, String>();
-    private Queue<String> request = new LinkedList<String>();
-    static Map<String, Integer> agents = new HashMap<String, Integer>();
+	Socket socket;
+	Map<String, String> header = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+	static AuthClient authClient = new AuthClient();
+	static TokenVerifier tokenVerifier = new TokenVerifier();
+	static TokenCache tokenCache = new TokenCache(new TokenCache.Loader() {
+		public CompletableFuture<Integer> load(String token) {
+			return authClient.lookUp(token);
+		}
+	}, Manager.getIntSetting("token_cache_size", 1000), Manager.getIntSetting("token_cache_ttl", 3600) * 1000L, Manager.getIntSetting("token_cache_negative_ttl", 60) * 1000L);
 	private HttpResponse response;
-	private InputStream is;
-	private BufferedReader br;
-    
-    // Constructor
-    public HttpRequest(Socket socket) throws Exception {
-        this.socket = socket;
-    }
-    
-    // Implement the run() method of the Runnable interface.
-    public void run() {
-        processRequest();
-    }
-    
-    private void processRequest() {
-        try {
-			
-			// Get a reference to the socket's input stream.
-			is = new DataInputStream(socket.getInputStream());
-			br = new BufferedReader(new InputStreamReader(is, "UTF8"));
-
-			// Process the request
-            try {
-                String headerLine;
-                String cookiestr = null;
-				String requestLine = null;
-                while ((headerLine = br.readLine()) != null) {
-                    if (headerLine.length() < 1) break;
-                    
-					if (requestLine == null) requestLine = headerLine;
-                    int jj = headerLine.indexOf(':');
-                    if (jj == -1) continue;
-                    String field = headerLine.substring(0, jj).trim();
-                    String value = headerLine.substring(jj+1).trim();
-                    if (field.equals("Cookie")) {
-                        cookiestr = value;
-                    }
-                }
-				
-				// If there's no requestline, then just ignore it as a bad request
-				if (requestLine == null) {
-					tidyUp();
-					return;
-				}
-								
-                // Extract the path from the request line.
-                StringTokenizer tokens = new StringTokenizer(requestLine);
-                String method = tokens.nextToken().trim();
-                String path = tokens.nextToken().trim();
-				
-				// Extract the get paramters from the path
-                Map<String, String> get = new HashMap<String, String>();
-				int ii = path.indexOf('?');
-				if (ii > -1) {
-					String[] getstring = path.substring(ii+1).split("&");
-					for (String key : getstring) {
-						int jj = key.indexOf('=');
-						String field;
-						if ( jj > -1) {
-							field = key.substring(jj+1);
-							key = key.substring(0, jj);
-						} else {
-								field = "true";
-						}
-						key = URLDecoder.decode(key, "UTF-8");
-						field = URLDecoder.decode(field, "UTF-8");
-						get.put(key, field);
-					}
-					path = path.substring(0, ii);
+	private InputStream in;
+	private OutputStream out;
+
+	// Set once the connection has been handed over to something else, such as an event stream
+	private boolean detached = false;
+
+	// Set when the response is waiting on something, such as a blocking query, before it can be sent
+	private CompletableFuture<?> suspendedUntil = null;
+	private Runnable resumption = null;
+	private boolean suspendedKeepAlive = false;
+
+	// Constructor
+	public HttpRequest(Socket socket) {
+		this.socket = socket;
+	}
+
+	// Implement the run() method of the Runnable interface.
+	public void run() {
+		processRequest();
+	}
+
+	private void processRequest() {
+		try {
+			boolean more = true;
+			if (in == null) {
+
+				// Get references to the socket's streams, which are shared by every request on this connection.
+				in = new BufferedInputStream(socket.getInputStream());
+				out = new BufferedOutputStream(socket.getOutputStream());
+
+				// Drop connections which sit idle, so they don't hold on to a worker indefinitely
+				socket.setSoTimeout(Manager.getIntSetting("http_keepalive_timeout", 15) * 1000);
+			} else if (resumption != null) {
+
+				// A suspended request picks up where it left off, by finishing its response
+				Runnable pending = resumption;
+				resumption = null;
+				pending.run();
+				more = sendResponse(suspendedKeepAlive);
+			}
+
+			// Keep processing requests until either end asks for the connection to be closed
+			while (more && handleRequest());
+		} catch (SocketTimeoutException e) {
+			// The client has left a persistent connection idle, so close it
+		} catch (SocketException e) {
+			// Don't do anything if there's a socketexception - it's probably just the client disconnecting before it's received the full response
+		} catch (Exception e) {
+			Manager.logErr("Server Error (HttpRequest):");
+			Manager.logErr(e);
+		}
+
+		// Only resume once this thread is done with the connection, so there's never more than one thread on it
+		if (suspendedUntil != null) {
+			CompletableFuture<?> until = suspendedUntil;
+			suspendedUntil = null;
+			until.whenComplete((result, error) -> {
+				detached = false;
+				Manager.connections().resume(HttpRequest.this);
+			});
+			return;
+		}
+		tidyUp();
+	}
+
+	/**
+	 * Reads a single request from the connection and sends its response
+	 *
+	 * @returns boolean Whether the connection should be kept open for another request
+	 */
+	private boolean handleRequest() throws Exception {
+		header.clear();
+
+		// Clients are allowed to send empty lines between requests, so skip over them
+		String requestLine = readLine();
+		while (requestLine != null && requestLine.length() < 1) requestLine = readLine();
+
+		// If there's no requestline, then the client has closed the connection
+		if (requestLine == null) return false;
+		String headerLine;
+		while ((headerLine = readLine()) != null) {
+			if (headerLine.length() < 1) break;
+			int jj = headerLine.indexOf(':');
+			if (jj == -1) continue;
+			String field = headerLine.substring(0, jj).trim();
+			String value = headerLine.substring(jj+1).trim();
+			header.put(field, value);
+		}
+		String cookiestr = header.get("Cookie");
+
+		// Extract the path from the request line.
+		StringTokenizer tokens = new StringTokenizer(requestLine);
+
+		// If the requestline is malformed, then just ignore it as a bad request
+		if (tokens.countTokens() < 2) return false;
+		String method = tokens.nextToken().trim();
+		String path = tokens.nextToken().trim();
+		String version = tokens.hasMoreTokens() ? tokens.nextToken().trim() : "HTTP/1.0";
+
+		// The connection can only be reused if the end of this request's body can be found
+		boolean keepAlive = wantsKeepAlive(version) && skipBody();
+
+		// Extract the get paramters from the path
+		Map<String, String> get = new HashMap<String, String>();
+		int ii = path.indexOf('?');
+		if (ii > -1) {
+			String[] getstring = path.substring(ii+1).split("&");
+			for (String key : getstring) {
+				int jj = key.indexOf('=');
+				String field;
+				if ( jj > -1) {
+					field = key.substring(jj+1);
+					key = key.substring(0, jj);
+				} else {
+						field = "true";
 				}
-				path = URLDecoder.decode(path, "UTF-8");
-
-				// Extract the cookies from the request
-				Map<String, String> cookies = new HashMap<String, String>();
-				if (cookiestr != null) {
-				String[] cookiestrs = cookiestr.split(";");
-					for (String key : cookiestrs) {
-						int jj = key.indexOf('=');
-						String field;
-						if ( jj > -1) {
-							field = key.substring(jj+1);
-							key = key.substring(0, jj);
-						} else {
-								field = "true";
-						}
-						key = URLDecoder.decode(key, "UTF-8").trim();
-						field = URLDecoder.decode(field, "UTF-8").trim();
-						cookies.put(key, field);
-					}
+				key = URLDecoder.decode(key, "UTF-8");
+				field = URLDecoder.decode(field, "UTF-8");
+				get.put(key, field);
+			}
+			path = path.substring(0, ii);
+		}
+		path = URLDecoder.decode(path, "UTF-8");
+
+		// Extract the cookies from the request
+		Map<String, String> cookies = new HashMap<String, String>();
+		if (cookiestr != null) {
+		String[] cookiestrs = cookiestr.split(";");
+			for (String key : cookiestrs) {
+				int jj = key.indexOf('=');
+				String field;
+				if ( jj > -1) {
+					field = key.substring(jj+1);
+					key = key.substring(0, jj);
+				} else {
+						field = "true";
 				}
-				
-				
-				// Get a reference to the socket and create a response.
-				final Socket socket = this.socket;
-				response = new HttpResponse(socket);
-				
-				// Authenticate the request
-                String token = get.get("token");
-                if (token == null) token = cookies.get("token");
-                
-                // An agentid of null means the user hasn't authenticated - an agentid of zero indicates a problem retrieving the agentid from the authentication service
-                Integer agentid = null;
-                if (token != null) {
-                    agentid = agents.get(token);
-                    if (agentid == null && Manager.authRunning()) {
-						String authurl = "http://"+Manager.authDomain()+"/data?token="+URLEncoder.encode(token, "utf8");
-                        try{
-                            URL dataurl = new URL(authurl);
-                            Gson gson = new Gson();
-                            HttpURLConnection connection = (HttpURLConnection) dataurl.openConnection();
-                            InputStream is;
-                            if (connection.getResponseCode() == 200) {
-                            	is = connection.getInputStream();
-                            } else {
-                            	is = connection.getErrorStream();
-                            }
-                            BufferedReader datain = new BufferedReader(new InputStreamReader(is));
-                            String data = "";
-                            String datastr;
-                            while ((datastr = datain.readLine()) != null) {
-                                data += datastr;
-                            }
-                            datain.close();
-                            AuthData ad = gson.fromJson(data, AuthData.class);
-                            if (connection.getResponseCode() == 200) {
-	                            agentid = ad.getId();
-	                            if (agentid > 0) {
-	                                agents.put(token, agentid);
-	                            }
-	                        } else {
-
-	                        	// If the authentication returned an error response, then invalidate the token.
-	                        	Manager.log("Auth Error: "+ad.getError());
-	                        	agents.remove(token);
-	                        	agentid = null;
-	                        }
-                        } catch (FileNotFoundException e) {
-							Manager.logErr("Auth Error: Can't connect to "+authurl);
-                        } catch (IOException e) {
-                        	Manager.logErr(e.getMessage());
-
-                        	// Sometimes these errors can get the user stuck in an endless loop, so output them.
-                        	Manager.logErr(e);
-                        }
-                    }
-                }
-                if (agentid != null && agentid > 0 
-                	&& cookies.get("token") != token) {
-					response.setHeader("Set-Cookie", "token=" + URLEncoder.encode(token, "utf8"));
-                }
-                
-				String[] pathParts = path.split("\\/");
-                if (pathParts.length < 2 || path.equals("/services")) {
-                    response.redirect("/services/");
-				} else if (pathParts[1].equals("services")) {
-					if (isAuthorised(agentid, method, "http://"+Manager.servicesDomain()+path)) {
-						if (pathParts.length == 2) {
-							response.setBody(Service.getIndexTemplate());
-						} else {
-							Service service = null;
-							String id = pathParts[2];
-							if (id.length() > 0) {
-								try {
-									service = Service.getById(id);
-									if (pathParts.length == 3) {
-										response.setBody(service.getFullTemplate());
-									} else {
-										if (method.equalsIgnoreCase("POST")) {
-											service.execCommand(pathParts[3]);
-											response.redirect("/services/"+service.getId());
+				key = URLDecoder.decode(key, "UTF-8").trim();
+				field = URLDecoder.decode(field, "UTF-8").trim();
+				cookies.put(key, field);
+			}
+		}
+
+
+		// Create a response which writes to this connection.
+		response = new HttpResponse(out, socket.getChannel());
+		response.setChunkedAllowed(version.equals("HTTP/1.1"));
+		response.setHeadOnly(method.equalsIgnoreCase("HEAD"));
+		response.setAcceptEncoding(header.get("Accept-Encoding"));
+
+		// Authenticate the request
+		String token = get.get("token");
+		if (token == null) token = cookies.get("token");
+
+		// An agentid of null means the user hasn't authenticated - an agentid of zero indicates a problem retrieving the agentid from the authentication service
+		Integer agentid = null;
+		if (token != null) {
+
+			// Signed tokens can be checked here, only opaque ones need the auth service
+			if (tokenVerifier.canVerify(token)) agentid = tokenVerifier.verify(token);
+			else agentid = tokenCache.get(token);
+		}
+		if (agentid != null && agentid > 0
+			&& cookies.get("token") != token) {
+			response.setHeader("Set-Cookie", "token=" + URLEncoder.encode(token, "utf8"));
+		}
+
+		String[] pathParts = path.split("\\/");
+		if (pathParts.length < 2 || path.equals("/services")) {
+			response.redirect("/services/");
+		} else if (pathParts[1].equals("services")) {
+			if (isAuthorised(agentid, method, "http://"+Manager.servicesDomain()+path)) {
+				if (pathParts.length == 2) {
+					sendOutput(Service.getIndexPage());
+				} else {
+					Service service = null;
+					String id = pathParts[2];
+					if (id.length() > 0) {
+						try {
+							service = Service.getById(id);
+							if (pathParts.length == 3) {
+								sendOutput(service.getPage());
+							} else {
+								if (method.equalsIgnoreCase("POST")) {
+									Operation operation = null;
+									try {
+										operation = service.queueCommand(pathParts[3]);
+									} catch (RejectedExecutionException e) {
+										response.setError(503, "Too Many Operations Queued");
+									}
+									if (operation != null) {
+
+										// Scripts asking for json get a link to check on the operation, whilst browsers go back to the service's page
+										String accept = header.get("Accept");
+										if (accept != null && accept.contains("application/json")) {
+											response.accepted(operation.getStatusUrl(), operation.getInfo());
 										} else {
-											response.setError(405, "Not Allowed.");
-											response.setHeader("Allow", "POST");
+											response.setHeader("Link", "<"+operation.getStatusUrl()+">; rel=\"status\"");
+											response.redirect("/services/"+service.getId(), 303);
 										}
+									} else if (response.statuscode != 503) {
+										response.notFound("Command");
 									}
-								} catch (RuntimeException e) {
-									response.notFound("Service");
+								} else {
+									response.setError(405, "Not Allowed.");
+									response.setHeader("Allow", "POST");
 								}
 							}
+						} catch (RuntimeException e) {
+							response.notFound("Service");
+						}
+					}
+				}
+
+			}
+		} else if (pathParts[1].equals("api")) {
+			if (pathParts.length == 2) {
+				response.setJson("// TODO: write some API documentation");
+			} else if (pathParts[2].equals("hosts")) {
+				hostsQuery(get);
+			} else if (pathParts[2].equals("services") && pathParts.length == 6 && pathParts[4].equals("logs") && pathParts[5].equals("stream")) {
+				if (isAuthorised(agentid, method, "http://"+Manager.servicesDomain()+path)) {
+					try {
+						streamEvents(Service.getById(pathParts[3]).getLogEvents(), method);
+					} catch (RuntimeException e) {
+						response.notFound("Service");
+					}
+				}
+			} else if (pathParts[2].equals("services") && pathParts.length == 5 && pathParts[4].equals("output")) {
+				if (isAuthorised(agentid, method, "http://"+Manager.servicesDomain()+path)) {
+					try {
+						Service service = Service.getById(pathParts[3]);
+						Map<String, List<String>> output = new LinkedHashMap<String, List<String>>();
+						output.put("stdout", service.getStdOut());
+						output.put("stderr", service.getStdErr());
+						response.setJson(output);
+					} catch (RuntimeException e) {
+						response.notFound("Service");
+					}
+				}
+			} else if (pathParts[2].equals("services") && pathParts.length == 5 && pathParts[4].equals("logs")) {
+				if (isAuthorised(agentid, method, "http://"+Manager.servicesDomain()+path)) {
+					Service service = null;
+					try {
+						service = Service.getById(pathParts[3]);
+					} catch (RuntimeException e) {
+						response.notFound("Service");
+					}
+					if (service != null) {
+						try {
+							long from = get.containsKey("from") ? Long.parseLong(get.get("from")) : -1;
+							long since = get.containsKey("since") ? Long.parseLong(get.get("since")) : 0;
+							int limit = get.containsKey("limit") ? Integer.parseInt(get.get("limit")) : 100;
+							limit = Math.max(1, Math.min(limit, Manager.getIntSetting("log_read_limit", 1000)));
+							Map<String, Object> logs = service.getLogs(from, since, limit);
+							if (logs == null) response.notFound("Log");
+							else response.setJson(logs);
+						} catch (NumberFormatException e) {
+							response.setError(400, "Bad Request");
 						}
-						
 					}
-				} else if (pathParts[1].equals("api")) {
-					if (pathParts.length == 2) {
-						response.setJson("// TODO: write some API documentation");
-					} else if (pathParts[2].equals("hosts")) {
-						response.setJson(Service.getHosts());
-					} else {
-						response.notFound();
+				}
+			} else if (pathParts[2].equals("events") && pathParts.length == 3) {
+				if (isAuthorised(agentid, method, "http://"+Manager.servicesDomain()+path)) {
+					streamBusEvents(get, method);
+				}
+			} else if (pathParts[2].equals("operations") && pathParts.length == 4) {
+				if (isAuthorised(agentid, method, "http://"+Manager.servicesDomain()+path)) {
+					Operation operation = null;
+					try {
+						operation = Operation.get(Long.parseLong(pathParts[3]));
+					} catch (NumberFormatException e) {
+						// Treated the same as an unknown operation
 					}
-                } else {
-					
-					if (path.equals("/icon")) path = "/icon.png";
-					String fileName = "./data" + path;
-					fileName.replaceAll("/\\.\\./","");
-					
-                    // Open the requested file.
-                    FileInputStream fis = null;
-                    try {
-						response.setBody(new FileInputStream(fileName));
-						response.setFileName(fileName);
-                    } catch (FileNotFoundException e) {
-						response.notFound();
-                    }
-                }
-                
-				response.send();
-				tidyUp();
-            
-				
-			} catch (SocketException e) {
-				// Don't do anything if there's a socketexception - it's probably just the client disconnecting before it's received the full response
-            } catch (Exception e) {
-                Manager.logErr("Server Error (HttpRequest):");
-                Manager.logErr(e);
-            }
-            
-        } catch (IOException e) {
-            Manager.logErr("Server Error (HttpRequest):");
-            Manager.logErr(e);
-            
-        }
-    }
-    private boolean isAuthorised(Integer agentid, String method, String uri) throws Exception {
-        
-        // Luke is authorised
-        if (agentid != null && agentid.intValue() == 2) return true;
-            
-        // If the auth service is running then make sure the user has authenticated
-        if (Manager.authRunning() && agentid == null) {
-            response.redirect("http://"+Manager.authDomain()+"/authenticate?redirect_uri="+URLEncoder.encode(uri, "utf8"), 307);
-            return false;
-        }
-        
-        // If the user has successfully authenticated, but isn't authorised, return a 403
-        if (agentid != null && agentid > 0) {
-            response.setError(403, "Permission Denied");
-            return false;
-        }
-        
-        /* Ideally never go past this point - this means either the authentication server isn't running or has returned an invalid agentid */
-        if (!Manager.authRunning()) Manager.logErr("Auth service isn't running, using fallback auth rules");
-        else Manager.logErr("Auth service returned invalid agentid, using fallback auth rules");
-            
-        // Allow GET requests so that whatever is causing the problem can be debugged
-        if (method.equalsIgnoreCase("GET")) return true;
-        
-        // Don't allow any other requests as the user hasn't been authenticated
-        response.setError(403, "Authentication Error");
-        return false;
-    }
-
-    static class AuthData {
-        private int id;
-        private String error;
-        public AuthData() {
-        }
-        public int getId() {
-             return id;
-        }
-        public String getError() {
-        	return error;
-        }
-    }
-	
+					if (operation == null) response.notFound("Operation");
+					else response.setJson(operation.getInfo());
+				}
+			} else if (pathParts[2].equals("tokencache")) {
+				if (isAuthorised(agentid, method, "http://"+Manager.servicesDomain()+path)) {
+					Map<String, Object> stats = new LinkedHashMap<String, Object>(tokenCache.getStats());
+					stats.put("authBreaker", authClient.getBreaker().getState());
+					response.setJson(stats);
+				}
+			} else {
+				response.notFound();
+			}
+		} else {
+
+			if (path.equals("/icon")) path = "/icon.png";
+			StaticFile file = StaticFile.get(path);
+
+			// Use the precompressed version of the file where there is one and the client can handle it
+			if (file != null && response.isGzipAllowed()) {
+				StaticFile gzipped = file.getGzipped();
+				if (gzipped != null) file = gzipped;
+			}
+			if (file == null) {
+				response.notFound();
+			} else if (file.isNotModified(header.get("If-None-Match"), header.get("If-Modified-Since"))) {
+				response.notModified(file);
+			} else {
+				response.setBody(file);
+
+				// Only send part of the file if the client's partial copy is of the current version
+				String range = header.get("Range");
+				if (range != null && file.isCurrent(header.get("If-Range"))) {
+					List<StaticFile.Range> ranges = file.parseRanges(range);
+					if (ranges != null) response.setRanges(ranges);
+				}
+			}
+		}
+
+		if (detached) {
+			suspendedKeepAlive = keepAlive;
+			return false;
+		}
+		return sendResponse(keepAlive);
+	}
+	private boolean sendResponse(boolean keepAlive) throws IOException {
+
+		// Give up persistent connections when all the workers are in use, so that waiting clients get a turn
+		if (Manager.connections().isSaturated()) keepAlive = false;
+		response.setKeepAlive(keepAlive);
+		response.send();
+		return response.isKeepAlive();
+	}
+
+	/**
+	 * Puts the request aside until something completes, without holding on to a worker in the meantime
+	 * Once it completes, resumption fills in the response, which is then sent, and the connection carries on as normal
+	 */
+	private void suspend(CompletableFuture<?> until, Runnable resumption) {
+		this.suspendedUntil = until;
+		this.resumption = resumption;
+		detached = true;
+	}
+
+	/**
+	 * Responds with the domain of every service
+	 *
+	 * With an index parameter, this is a blocking query: if the registry's hosts index is still the one given, the response
+	 * waits until it changes or the wait parameter (eg "30s", "5m", defaulting to hosts_max_wait seconds) runs out.
+	 */
+	private void hostsQuery(Map<String, String> get) {
+		long index;
+		long wait;
+		long maxWait = Manager.getIntSetting("hosts_max_wait", 300) * 1000L;
+		try {
+			index = get.containsKey("index") ? Long.parseLong(get.get("index")) : -1;
+			wait = get.containsKey("wait") ? Math.min(parseDuration(get.get("wait")), maxWait) : maxWait;
+		} catch (NumberFormatException e) {
+			response.setError(400, "Bad Request");
+			return;
+		}
+		ServiceRegistry.Snapshot snapshot = ServiceRegistry.get();
+		if (index >= 0 && index == snapshot.getHostsIndex() && wait > 0) {
+			final CompletableFuture<ServiceRegistry.Snapshot> change = ServiceRegistry.awaitHostsChange(index, wait);
+			suspend(change, new Runnable() {
+				public void run() {
+					setHosts(change.join());
+				}
+			});
+			return;
+		}
+		setHosts(snapshot);
+	}
+	private void setHosts(ServiceRegistry.Snapshot snapshot) {
+		response.setHeader("X-Index", Long.toString(snapshot.getHostsIndex()));
+		sendOutput(snapshot.getHosts());
+	}
+
+	/**
+	 * Sends a body kept from an earlier request, or just a 304 if the client's copy is the same
+	 */
+	private void sendOutput(CachedOutput output) {
+		if (output == null) {
+			response.setError(500, "Internal Server Error");
+			return;
+		}
+
+		// Use the compressed version where it's worth having one and the client can handle it
+		if (response.isGzipAllowed()) {
+			CachedOutput gzipped = output.getGzipped();
+			if (gzipped != null) output = gzipped;
+		}
+		if (output.isNotModified(header.get("If-None-Match"))) response.notModified(output);
+		else response.setBody(output);
+	}
+
+	/**
+	 * Parses a length of time, such as "30s", "5m" or "500ms", with no unit meaning seconds
+	 *
+	 * @returns long The time in milliseconds
+	 */
+	private static long parseDuration(String duration) {
+		if (duration.endsWith("ms")) return Long.parseLong(duration.substring(0, duration.length() - 2));
+		if (duration.endsWith("s")) return Long.parseLong(duration.substring(0, duration.length() - 1)) * 1000;
+		if (duration.endsWith("m")) return Long.parseLong(duration.substring(0, duration.length() - 1)) * 60000;
+		if (duration.endsWith("h")) return Long.parseLong(duration.substring(0, duration.length() - 1)) * 3600000;
+		return Long.parseLong(duration) * 1000;
+	}
+
+	/**
+	 * Hands the connection over to an event stream, which sends events to it until the client goes away
+	 */
+	private void streamEvents(EventStream stream, String method) throws IOException {
+		if (!startEventStream(method)) return;
+
+		// If others subscribed in the meantime, leaving no room, the headers have already gone so just hang up
+		if (!stream.subscribe(socket.getChannel())) socket.close();
+		detached = true;
+	}
+
+	/**
+	 * Hands the connection over to the event bus, replaying anything missed since the client's last event
+	 * Browsers send the id of the last event they saw as Last-Event-ID when reconnecting, whilst pages can pass lastEventId on their first connection
+	 */
+	private void streamBusEvents(Map<String, String> get, String method) throws IOException {
+		long since = -1;
+		String lastEventId = header.get("Last-Event-ID");
+		if (lastEventId == null) lastEventId = get.get("lastEventId");
+		try {
+			if (lastEventId != null) since = Long.parseLong(lastEventId.trim());
+		} catch (NumberFormatException e) {
+			response.setError(400, "Bad Request");
+			return;
+		}
+		if (!startEventStream(method)) return;
+		if (!EventBus.subscribe(socket.getChannel(), since)) socket.close();
+		detached = true;
+	}
+
+	/**
+	 * Sends the headers for an event stream, unless there's no room for another or it's a HEAD request
+	 *
+	 * @returns boolean Whether the stream has been started, so the connection is ready to subscribe
+	 */
+	private boolean startEventStream(String method) throws IOException {
+		if (socket.getChannel() == null || EventStream.isFull()) {
+			response.setError(503, "Too Many Event Streams");
+			return false;
+		}
+		if (method.equalsIgnoreCase("HEAD")) {
+			response.setHeader("Content-type", "text/event-stream; charset=utf-8");
+			return false;
+		}
+		response.startEventStream();
+		return true;
+	}
+
+	/**
+	 * Works out whether the client wants the connection kept open after this request
+	 * HTTP/1.1 connections are persistent unless the client says otherwise, earlier versions must ask for it
+	 */
+	private boolean wantsKeepAlive(String version) {
+		String connection = header.get("Connection");
+		if (connection != null && connection.equalsIgnoreCase("close")) return false;
+		if (version.equals("HTTP/1.1")) return true;
+		return connection != null && connection.equalsIgnoreCase("keep-alive");
+	}
+
+	/**
+	 * Reads past the request body (none of the endpoints make use of one), so that the next request starts in the right place
+	 *
+	 * @returns boolean false if the body can't be delimited, meaning the connection can't be reused
+	 */
+	private boolean skipBody() throws IOException {
+		if (header.containsKey("Transfer-Encoding")) return false;
+		String contentLength = header.get("Content-Length");
+		if (contentLength == null) return true;
+		long remaining;
+		try {
+			remaining = Long.parseLong(contentLength);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		while (remaining > 0) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				if (in.read() == -1) return false;
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a line of the request head, without reading any further into the stream
+	 *
+	 * @returns String The line, without its line ending, or null if the stream has ended
+	 */
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') break;
+			if (line.length() >= 8192) throw new IOException("Request line too long");
+			line.append((char)c);
+		}
+		if (c == -1 && line.length() == 0) return null;
+		int length = line.length();
+		if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+		return line.toString();
+	}
+	private boolean isAuthorised(Integer agentid, String method, String uri) throws Exception {
+
+		// Luke is authorised
+		if (agentid != null && agentid.intValue() == 2) return true;
+
+		// If the auth service is available then make sure the user has authenticated
+		if (authClient.isAvailable() && agentid == null) {
+			response.redirect("http://"+Manager.authDomain()+"/authenticate?redirect_uri="+URLEncoder.encode(uri, "utf8"), 307);
+			return false;
+		}
+
+		// If the user has successfully authenticated, but isn't authorised, return a 403
+		if (agentid != null && agentid > 0) {
+			response.setError(403, "Permission Denied");
+			return false;
+		}
+
+		/* Ideally never go past this point - this means either the authentication server isn't running or has returned an invalid agentid */
+		if (!Manager.authRunning()) Manager.logErr("Auth service isn't running, using fallback auth rules");
+		else if (!authClient.isAvailable()) Manager.logErr("Auth service isn't responding, using fallback auth rules");
+		else Manager.logErr("Auth service returned invalid agentid, using fallback auth rules");
+
+		// Allow GET (and HEAD) requests so that whatever is causing the problem can be debugged
+		if (method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("HEAD")) return true;
+
+		// Don't allow any other requests as the user hasn't been authenticated
+		response.setError(403, "Authentication Error");
+		return false;
+	}
+
 	private void tidyUp() {
+
+		// The connection now belongs to whatever it was handed over to
+		if (detached) return;
 		try {
-			br.close();
-			is.close();
+			if (out != null) out.close();
+		} catch (IOException e) {
+
+		}
+		try {
+			if (in != null) in.close();
 			socket.close();
 		} catch (IOException e) {
-			
+
 		}
 	}
 
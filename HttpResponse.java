@@ -1,19 +1,31 @@
 import java.io.* ;
 import java.net.* ;
+import java.nio.channels.* ;
 import java.util.* ;
+import java.util.zip.GZIPOutputStream ;
 import com.google.gson.*;
 class HttpResponse {
     final static String CRLF = "\r\n";
     DataOutputStream os;
+	WritableByteChannel channel;
 	int statuscode;
 	String statusmsg;
 	Map<String, String> headers;
 	Template bodyTemplate;
-	FileInputStream bodyFis;
+	StaticFile bodyFile;
+	CachedOutput bodyOutput;
 	String bodyString;
-	public HttpResponse(Socket socket) throws IOException {
-		final DataOutputStream os = new DataOutputStream(socket.getOutputStream());
-		this.os = os;
+	boolean keepAlive = false;
+	boolean chunkedAllowed = true;
+	boolean headOnly = false;
+	boolean gzipAllowed = false;
+	List<StaticFile.Range> bodyRanges;
+	public HttpResponse(OutputStream out, WritableByteChannel channel) {
+		os = new DataOutputStream(out);
+
+		// Without a channel of its own, data is written to the connection's stream
+		if (channel == null) channel = Channels.newChannel(os);
+		this.channel = channel;
 		headers = new HashMap<String, String>();
 		setStatus(200, "OK");
 		setHeader("Server", "lucos");
@@ -21,12 +33,78 @@ class HttpResponse {
 	public void setHeader(String key, String value) {
 		headers.put(key, value);
 	}
-	public void setFileName(String fileName) {
-		setHeader("Content-type", contentType(fileName));
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+	
+	/**
+	 * Whether the connection can be used for another request once this response has been sent
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+	
+	/**
+	 * Sets whether the client understands chunked transfer encoding (HTTP/1.1 clients must)
+	 */
+	public void setChunkedAllowed(boolean chunkedAllowed) {
+		this.chunkedAllowed = chunkedAllowed;
+	}
+	
+	/**
+	 * Sets whether to send just the headers, without a body, as for a HEAD request
+	 */
+	public void setHeadOnly(boolean headOnly) {
+		this.headOnly = headOnly;
+	}
+	
+	/**
+	 * Sets whether the body may be gzipped, based on the request's Accept-Encoding header
+	 */
+	public void setAcceptEncoding(String acceptEncoding) {
+		gzipAllowed = acceptsGzip(acceptEncoding);
+	}
+	public boolean isGzipAllowed() {
+		return gzipAllowed;
+	}
+	
+	/**
+	 * Parses an Accept-Encoding header to see whether gzip is acceptable
+	 * An explicit gzip entry takes precedence over a wildcard, and a q-value of zero means not acceptable
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) return false;
+		Boolean wildcard = null;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] params = coding.split(";");
+			String name = params[0].trim().toLowerCase();
+			boolean acceptable = true;
+			for (int ii = 1; ii < params.length; ii++) {
+				String param = params[ii].trim();
+				if (!param.startsWith("q=")) continue;
+				try {
+					acceptable = Double.parseDouble(param.substring(2)) > 0;
+				} catch (NumberFormatException e) {
+					acceptable = false;
+				}
+			}
+			if (name.equals("gzip") || name.equals("x-gzip")) return acceptable;
+			if (name.equals("*")) wildcard = acceptable;
+		}
+		return wildcard != null && wildcard;
+	}
+	
+	/**
+	 * The size in bytes above which dynamic bodies are compressed
+	 */
+	private static int compressThreshold() {
+		return Manager.getIntSetting("compress_min_size", 1024);
 	}
 	private void clearBody() {
-		bodyFis = null;
+		bodyRanges = null;
+		bodyFile = null;
 		bodyTemplate = null;
+		bodyOutput = null;
 		bodyString = null;
 	}
 	private void setStatus(int statuscode, String statusmsg) {
@@ -36,16 +114,56 @@ class HttpResponse {
 	public void setBody(Template template) {
 		clearBody();
 		bodyTemplate = template;
-		setFileName(template.getFileName());
+		setHeader("Content-type", contentType(template.getFileName()) + "; charset=utf-8");
+	}
+	public void setBody(StaticFile file) {
+		clearBody();
+		bodyFile = file;
+		file.setHeaders(this);
 	}
-	public void setBody(FileInputStream fis) {
+	public void setBody(CachedOutput output) {
 		clearBody();
-		bodyFis = fis;
+		bodyOutput = output;
+		output.setHeaders(this);
+	}
+	
+	/**
+	 * Tells the client that its cached copy of a file can still be used
+	 */
+	public void notModified(StaticFile file) {
+		clearBody();
+		setStatus(304, "Not Modified");
+		file.setHeaders(this);
+		headers.remove("Content-type");
+	}
+	public void notModified(CachedOutput output) {
+		clearBody();
+		setStatus(304, "Not Modified");
+		output.setHeaders(this);
+		headers.remove("Content-type");
+	}
+	
+	/**
+	 * Restricts a file body to some byte ranges of the file
+	 * @param List<StaticFile.Range> ranges The ranges to send. If empty, none of the request could be satisfied
+	 */
+	public void setRanges(List<StaticFile.Range> ranges) {
+		if (bodyFile == null) return;
+		if (ranges.isEmpty()) {
+			long length = bodyFile.getLength();
+			clearBody();
+			setStatus(416, "Range Not Satisfiable");
+			setHeader("Content-Range", "bytes */" + length);
+			headers.remove("Content-type");
+			return;
+		}
+		setStatus(206, "Partial Content");
+		bodyRanges = ranges;
 	}
 	private void setBody(String string) {
 		clearBody();
 		bodyString = string;
-		setHeader("Content-type", "text/plain");
+		setHeader("Content-type", "text/plain; charset=utf-8");
 	}
 	public void setError(int statuscode, String errormsg) {
 		setStatus(statuscode, errormsg);
@@ -70,6 +188,18 @@ class HttpResponse {
 	public void redirect(String url) {
 		redirect(url, 302);
 	}
+
+	/**
+	 * Responds to a request which has been queued rather than done straight away
+	 *
+	 * @param String statusUrl Where the progress of the request can be checked
+	 * @param Object output Details of the request, sent as json
+	 */
+	public void accepted(String statusUrl, Object output) {
+		setJson(output);
+		setStatus(202, "Accepted");
+		setHeader("Location", statusUrl);
+	}
 	public void notFound(String type) {
 		String msg = type + " Not Found";
 		setError(404, msg);
@@ -77,6 +207,19 @@ class HttpResponse {
 	public void notFound() {
 		notFound("File");
 	}
+	
+	/**
+	 * Starts a stream of server-sent events, sending the headers straight away
+	 * The stream has no set length, so the connection can't be used for anything else afterwards
+	 */
+	public void startEventStream() throws IOException {
+		clearBody();
+		setHeader("Content-type", "text/event-stream; charset=utf-8");
+		setHeader("Cache-Control", "no-cache");
+		keepAlive = false;
+		sendHeaders();
+		os.flush();
+	}
 	public void setJson(Object output) {
 		clearBody();
 		Gson gson = new Gson();
@@ -84,7 +227,7 @@ class HttpResponse {
 		setHeader("Content-type", "application/json");
 	}
 	
-    private static String contentType(String fileName) {
+    static String contentType(String fileName) {
         if(fileName.endsWith(".htm") || fileName.endsWith(".html")) {
             return "text/html";
         }
@@ -118,6 +261,7 @@ class HttpResponse {
         return "application/octet-stream";
     }
     private void sendHeaders() throws IOException {
+        setHeader("Connection", keepAlive ? "keep-alive" : "close");
         os.writeBytes("HTTP/1.1 "+ statuscode +" "+ statusmsg + CRLF);
         Iterator iter = headers.entrySet().iterator();
         while (iter.hasNext()) {
@@ -127,24 +271,204 @@ class HttpResponse {
         os.writeBytes(CRLF);
     }
 	
+	/**
+	 * Writes the response to the connection, leaving the connection open for any further requests
+	 */
 	public void send() throws IOException {
-		sendHeaders();
 		if (bodyTemplate != null) {
-			os.writeBytes(bodyTemplate.toString());
-		} else if (bodyString != null) {
-			os.writeBytes(bodyString);
-		} else if (bodyFis != null) {
-			
-			// Construct a 1K buffer to hold bytes on their way to the socket.
-			byte[] buffer = new byte[1024];
-			int bytes = 0;
-			
-			// Copy requested file into the socket's output stream.
-			while((bytes = bodyFis.read(buffer)) != -1 ) {
-				os.write(buffer, 0, bytes);
+			sendTemplate();
+			return;
+		}
+		if (bodyFile != null && bodyRanges != null) {
+			sendRanges();
+			return;
+		}
+		byte[] bodyBytes = null;
+		long contentLength = 0;
+		if (bodyString != null) {
+			bodyBytes = bodyString.getBytes("UTF-8");
+			setHeader("Vary", "Accept-Encoding");
+			if (gzipAllowed && bodyBytes.length >= compressThreshold()) {
+				bodyBytes = gzip(bodyBytes);
+				setHeader("Content-Encoding", "gzip");
+			}
+			contentLength = bodyBytes.length;
+		} else if (bodyOutput != null) {
+			bodyBytes = bodyOutput.getContent();
+			contentLength = bodyBytes.length;
+		} else if (bodyFile != null) {
+			contentLength = bodyFile.getLength();
+		}
+
+		// Always state the length, so the client knows where the response ends without the connection closing
+		// (except for 304s, which never have a body)
+		if (statuscode != 304) setHeader("Content-Length", Long.toString(contentLength));
+		sendHeaders();
+		if (headOnly) {
+		} else if (bodyBytes != null) {
+			os.write(bodyBytes);
+		} else if (bodyFile != null) {
+			bodyFile.writeTo(os, channel);
+		}
+		os.flush();
+	}
+	
+	/**
+	 * Sends parts of a file as a 206 response
+	 * A single range is sent on its own, several are sent as a multipart/byteranges body
+	 */
+	private void sendRanges() throws IOException {
+		long total = bodyFile.getLength();
+		if (bodyRanges.size() == 1) {
+			StaticFile.Range range = bodyRanges.get(0);
+			setHeader("Content-Range", range.toContentRange(total));
+			setHeader("Content-Length", Long.toString(range.getLength()));
+			sendHeaders();
+			if (!headOnly) bodyFile.writeTo(os, channel, range.start, range.getLength());
+			os.flush();
+			return;
+		}
+		String boundary = Long.toHexString(new Random().nextLong()) + Long.toHexString(System.nanoTime());
+
+		// Work out the part headers up front, as they're needed for the Content-Length
+		byte[][] partHeaders = new byte[bodyRanges.size()][];
+		byte[] closing = (CRLF + "--" + boundary + "--" + CRLF).getBytes("US-ASCII");
+		long contentLength = closing.length;
+		for (int ii = 0; ii < partHeaders.length; ii++) {
+			StaticFile.Range range = bodyRanges.get(ii);
+			partHeaders[ii] = (CRLF + "--" + boundary + CRLF
+				+ "Content-Type: " + bodyFile.getContentType() + CRLF
+				+ "Content-Range: " + range.toContentRange(total) + CRLF + CRLF).getBytes("US-ASCII");
+			contentLength += partHeaders[ii].length + range.getLength();
+		}
+		setHeader("Content-type", "multipart/byteranges; boundary=" + boundary);
+		setHeader("Content-Length", Long.toString(contentLength));
+		sendHeaders();
+		if (!headOnly) {
+			for (int ii = 0; ii < partHeaders.length; ii++) {
+				StaticFile.Range range = bodyRanges.get(ii);
+				os.write(partHeaders[ii]);
+				bodyFile.writeTo(os, channel, range.start, range.getLength());
+			}
+			os.write(closing);
+		}
+		os.flush();
+	}
+	
+	/**
+	 * Streams a template into the connection as it renders, so the page is never held in memory as a whole
+	 */
+	private void sendTemplate() throws IOException {
+		setHeader("Vary", "Accept-Encoding");
+		
+		// A HEAD response describes the body it would have had, without rendering it
+		if (headOnly) {
+			if (chunkedAllowed) setHeader("Transfer-Encoding", "chunked");
+			sendHeaders();
+			os.flush();
+			return;
+		}
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new StreamedBody(), "UTF-8"), 8192);
+		bodyTemplate.writeTo(writer);
+		writer.close();
+		os.flush();
+	}
+	private static byte[] gzip(byte[] input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2);
+		GZIPOutputStream gzip = new GZIPOutputStream(output);
+		gzip.write(input);
+		gzip.close();
+		return output.toByteArray();
+	}
+	
+	/**
+	 * A body whose length isn't known until it has all been written
+	 * 
+	 * The start of the body is held back, so that small bodies can be sent whole with a Content-Length.  Once the body
+	 * grows past the compression threshold, the headers are sent and the rest is streamed - gzipped if the client allows it,
+	 * and chunked (or, for clients which can't handle chunks, with the connection closed afterwards)
+	 */
+	private class StreamedBody extends OutputStream {
+		private final int threshold = compressThreshold();
+		private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+		
+		// Not set until the headers have been sent
+		private OutputStream body = null;
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (body == null) {
+				if (pending.size() + len <= threshold) {
+					pending.write(b, off, len);
+					return;
+				}
+				startStreaming();
+			}
+			body.write(b, off, len);
+		}
+		private void startStreaming() throws IOException {
+			if (chunkedAllowed) {
+				setHeader("Transfer-Encoding", "chunked");
+			} else {
+				keepAlive = false;
+			}
+			if (gzipAllowed) setHeader("Content-Encoding", "gzip");
+			sendHeaders();
+			OutputStream framed;
+			if (chunkedAllowed) {
+				framed = new ChunkedOutputStream(os);
+			} else {
+				framed = new FilterOutputStream(os) {
+					public void close() throws IOException {
+						flush();
+					}
+				};
+			}
+			body = gzipAllowed ? new GZIPOutputStream(framed, 8192) : framed;
+			pending.writeTo(body);
+			pending = null;
+		}
+		public void close() throws IOException {
+			if (body != null) {
+				body.close();
+				return;
 			}
-			bodyFis.close();
+			setHeader("Content-Length", Integer.toString(pending.size()));
+			sendHeaders();
+			pending.writeTo(os);
 		}
-		os.close();
+	}
+}
+
+/**
+ * Frames everything written to it as HTTP chunks
+ * Closing the stream ends the body, but leaves the underlying connection open
+ */
+class ChunkedOutputStream extends FilterOutputStream {
+	final static byte[] CRLF = {'\r', '\n'};
+	private boolean closed = false;
+	public ChunkedOutputStream(OutputStream out) {
+		super(out);
+	}
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte)b}, 0, 1);
+	}
+	public void write(byte[] b, int off, int len) throws IOException {
+		
+		// An empty chunk would mark the end of the body
+		if (len == 0) return;
+		out.write(Integer.toHexString(len).getBytes("US-ASCII"));
+		out.write(CRLF);
+		out.write(b, off, len);
+		out.write(CRLF);
+	}
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		out.write('0');
+		out.write(CRLF);
+		out.write(CRLF);
+		out.flush();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Holds the most recent lines of a service's output in a fixed amount of memory
+ *
+ * The characters of all the lines share one circular char array, with each line's position and length kept in circular
+ * primitive arrays, so adding a line never allocates.  Once the buffer holds as many lines or characters as it can, the
+ * oldest lines are dropped to make room.  Each line is cut short to at most a quarter of the characters, so a long line
+ * (such as a whole stack trace) can't push out everything before it.
+ * Snapshots are taken optimistically, without blocking writers, and are only retried under a read lock if a line was
+ * added whilst copying.
+ */
+class LogBuffer {
+	private final char[] chars;
+	private final int maxLineLength;
+	private final long[] lineStarts;
+	private final int[] lineLengths;
+
+	// Positions are counted from when the buffer was created, and wrapped onto the arrays when used
+	private long firstLine = 0;
+	private long nextLine = 0;
+	private long nextChar = 0;
+	private final StampedLock lock = new StampedLock();
+
+	/**
+	 * @param int maxLines The most lines to hold
+	 * @param int maxChars The most characters to hold, across all the lines
+	 * @param int maxLineLength The most characters to hold of each line, which can be no more than a quarter of maxChars.
+	 * Longer lines are truncated to this
+	 */
+	public LogBuffer(int maxLines, int maxChars, int maxLineLength) {
+		maxLines = Math.max(1, maxLines);
+		maxChars = Math.max(1, maxChars);
+		this.maxLineLength = Math.max(1, Math.min(maxLineLength, maxChars / 4));
+		chars = new char[maxChars];
+		lineStarts = new long[maxLines];
+		lineLengths = new int[maxLines];
+	}
+	public void add(String line) {
+		long stamp = lock.writeLock();
+		try {
+			addLine(line);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Adds several lines, taking the lock just once
+	 */
+	public void addAll(Collection<String> lines) {
+		long stamp = lock.writeLock();
+		try {
+			for (String line : lines) {
+				addLine(line);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+	private void addLine(String line) {
+		int length = Math.min(line.length(), maxLineLength);
+
+		// Drop the oldest lines until there's room for this one
+		while (firstLine < nextLine && (nextLine - firstLine >= lineStarts.length
+				|| nextChar + length - lineStarts[lineIndex(firstLine)] > chars.length)) {
+			firstLine++;
+		}
+		int start = (int)(nextChar % chars.length);
+		int firstPart = Math.min(length, chars.length - start);
+		line.getChars(0, firstPart, chars, start);
+		line.getChars(firstPart, length, chars, 0);
+		lineStarts[lineIndex(nextLine)] = nextChar;
+		lineLengths[lineIndex(nextLine)] = length;
+		nextLine++;
+		nextChar += length;
+	}
+	public void clear() {
+		long stamp = lock.writeLock();
+		try {
+			firstLine = nextLine;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+	public boolean isEmpty() {
+		long stamp = lock.tryOptimisticRead();
+		boolean empty = (firstLine == nextLine);
+		if (lock.validate(stamp)) return empty;
+		stamp = lock.readLock();
+		try {
+			return firstLine == nextLine;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Copies out the lines currently held, oldest first
+	 */
+	public List<String> snapshot() {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				List<String> lines = copyLines();
+				if (lock.validate(stamp)) return lines;
+			} catch (RuntimeException e) {
+
+				// A line was being added midway through copying, so what was read doesn't make sense.  Copy again under the lock
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return copyLines();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+	private List<String> copyLines() {
+		long first = firstLine;
+		long next = nextLine;
+		int count = (int)Math.max(0, Math.min(next - first, lineStarts.length));
+		List<String> lines = new ArrayList<String>(count);
+		for (long ii = next - count; ii < next; ii++) {
+			int index = lineIndex(ii);
+			int start = (int)(lineStarts[index] % chars.length);
+			int length = Math.min(lineLengths[index], chars.length);
+			int firstPart = Math.min(length, chars.length - start);
+			if (firstPart == length) {
+				lines.add(new String(chars, start, length));
+			} else {
+				StringBuilder line = new StringBuilder(length);
+				line.append(chars, start, firstPart);
+				line.append(chars, 0, length - firstPart);
+				lines.add(line.toString());
+			}
+		}
+		return lines;
+	}
+	private int lineIndex(long line) {
+		return (int)(line % lineStarts.length);
+	}
+}
@@ -0,0 +1,534 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * An append-only store of everything a service has output, kept on disk so it outlives both the in-memory buffers and restarts
+ *
+ * The log is split into segment files, each named after the offset of its first line.  The segment being written to is
+ * memory mapped, as are closed segments when read.  Each line is stored as a record:
+ *   [int record length][long timestamp][byte stream][UTF-8 bytes of the line]
+ * and a zero length marks the end of a segment.  Every so many records, a sparse index notes the record's offset, position
+ * and time, so reads can seek by offset or by time without scanning whole segments.
+ *
+ * A new segment is started once the current one is full or older than log_segment_age.  Closed segments can optionally be
+ * gzipped, and the oldest are deleted once there are more than log_max_segments.
+ */
+class LogStore {
+	public static final byte STDOUT = 0;
+	public static final byte STDERR = 1;
+	private static final int HEADER_SIZE = 13;
+	private static final int INDEX_ENTRY_SIZE = 20;
+	private static ExecutorService compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "log-compressor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private final File dir;
+	private final int segmentSize;
+	private final long segmentAge;
+	private final int maxSegments;
+	private final int indexInterval;
+	private final boolean compress;
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private Segment active;
+	private volatile long nextOffset = 0;
+	private LogStore(File dir) throws IOException {
+		this.dir = dir;
+		this.segmentSize = Manager.getIntSetting("log_segment_size", 16 * 1024 * 1024);
+		this.segmentAge = Manager.getIntSetting("log_segment_age", 24) * 3600 * 1000L;
+		this.maxSegments = Math.max(1, Manager.getIntSetting("log_max_segments", 10));
+		this.indexInterval = Math.max(1, Manager.getIntSetting("log_index_interval", 64));
+		this.compress = Boolean.parseBoolean(Manager.getSetting("log_compress", "false"));
+		dir.mkdirs();
+		recover();
+	}
+
+	/**
+	 * Opens the log store for a service
+	 *
+	 * @returns LogStore null if no log_dir is configured, or the store can't be opened
+	 */
+	public static LogStore open(String serviceId) {
+		String logDir = Manager.getSetting("log_dir");
+		if (logDir == null || logDir.isEmpty()) return null;
+		File dir = new File(logDir, serviceId.replaceAll("[^A-Za-z0-9_.-]", "_"));
+		try {
+			return new LogStore(dir);
+		} catch (IOException e) {
+			Manager.logErr("Can't open log store in " + dir.getAbsolutePath());
+			Manager.logErr(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Loads the segments left by a previous run, working out where the last one ends
+	 */
+	private void recover() throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) throw new IOException("Can't list " + dir.getAbsolutePath());
+		for (File file : files) {
+			String name = file.getName();
+			boolean compressed = name.endsWith(".log.gz");
+			if (!compressed && !name.endsWith(".log")) continue;
+			long baseOffset;
+			try {
+				baseOffset = Long.parseLong(name.substring(0, name.indexOf('.')));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+
+			// If a segment was compressed but the original not yet deleted, prefer the original
+			if (compressed && new File(dir, baseName(baseOffset) + ".log").exists()) continue;
+			segments.put(baseOffset, new Segment(baseOffset, file, compressed));
+		}
+		if (segments.isEmpty()) return;
+		Segment last = segments.lastEntry().getValue();
+		if (last.compressed) {
+			last.loadIndex();
+			nextOffset = last.baseOffset + last.count;
+			return;
+		}
+		last.map();
+		last.scan();
+		if (last.count == 0) last.created = System.currentTimeMillis();
+		nextOffset = last.baseOffset + last.count;
+		active = last;
+	}
+
+	/**
+	 * Adds a line to the end of the log
+	 *
+	 * @returns long The line's offset, or -1 if it couldn't be written
+	 */
+	public synchronized long append(byte stream, String line) {
+		try {
+			byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+
+			// Leave room for the record's header and the zero which marks the end of the segment
+			int length = Math.min(bytes.length, segmentSize - HEADER_SIZE - 4);
+			long now = System.currentTimeMillis();
+
+			// The active segment may have been created with a different log_segment_size by a previous run, so go by its own size
+			if (active == null || active.size + HEADER_SIZE + length + 4 > active.buffer.capacity() || now - active.created > segmentAge) rotate(now);
+			active.append(nextOffset, now, stream, bytes, length);
+			return nextOffset++;
+		} catch (IOException | RuntimeException e) {
+
+			// Don't log this to the service, as that would try writing to the store again
+			System.err.println("Failed to write to log store in " + dir.getAbsolutePath());
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	/**
+	 * Closes the active segment and starts a new one
+	 */
+	private void rotate(long now) throws IOException {
+		final Segment closed = active;
+		Segment segment = new Segment(nextOffset, new File(dir, baseName(nextOffset) + ".log"), false);
+		segment.create(segmentSize, now);
+		segments.put(segment.baseOffset, segment);
+		active = segment;
+		if (closed != null) {
+			closed.close();
+			if (compress) {
+				compressor.execute(new Runnable() {
+					public void run() {
+						closed.compress();
+					}
+				});
+			}
+		}
+		while (segments.size() > maxSegments) {
+			segments.pollFirstEntry().getValue().delete();
+		}
+	}
+
+	/**
+	 * Reads lines from the log, oldest first
+	 *
+	 * @param long from The offset of the first line wanted, or -1 to start from the since time
+	 * @param long since The earliest time wanted, in milliseconds since the epoch (ignored if from is set)
+	 * @param int limit The most lines to return
+	 */
+	public List<Record> read(long from, long since, int limit) throws IOException {
+		List<Segment> candidates;
+		synchronized (this) {
+			candidates = new ArrayList<Segment>(segments.values());
+		}
+		List<Record> records = new ArrayList<Record>();
+		for (int ii = 0; ii < candidates.size() && records.size() < limit; ii++) {
+			Segment segment = candidates.get(ii);
+			Segment next = (ii + 1 < candidates.size()) ? candidates.get(ii + 1) : null;
+
+			// Skip over segments which end before what's wanted
+			if (next != null) {
+				if (from >= 0 && next.baseOffset <= from) continue;
+				if (from < 0 && next.created > 0 && next.created <= since) continue;
+			}
+			segment.read(from, since, limit - records.size(), records);
+		}
+		return records;
+	}
+
+	/**
+	 * The offset of the oldest line still held
+	 */
+	public synchronized long getFirstOffset() {
+		if (segments.isEmpty()) return nextOffset;
+		return segments.firstKey();
+	}
+
+	/**
+	 * The offset the next line will be given
+	 */
+	public long getNextOffset() {
+		return nextOffset;
+	}
+	private static String baseName(long baseOffset) {
+		return String.format("%020d", baseOffset);
+	}
+
+	/**
+	 * A single line from the log
+	 */
+	static class Record {
+		public final long offset;
+		public final long time;
+		public final String stream;
+		public final String line;
+		Record(long offset, long time, byte stream, String line) {
+			this.offset = offset;
+			this.time = time;
+			this.stream = (stream == STDERR) ? "stderr" : "stdout";
+			this.line = line;
+		}
+	}
+
+	/**
+	 * One file of the log
+	 * Fields which readers use without holding the store's lock are volatile, and size is only increased once a record is fully written
+	 */
+	private class Segment {
+		final long baseOffset;
+		volatile File file;
+		volatile boolean compressed;
+		volatile MappedByteBuffer buffer;
+		volatile int size = 0;
+		volatile long count = 0;
+		volatile long created = 0;
+		volatile boolean deleted = false;
+
+		// The sparse index, in parallel arrays
+		private long[] indexOffsets = new long[16];
+		private int[] indexPositions = new int[16];
+		private long[] indexTimes = new long[16];
+		private volatile int indexCount = 0;
+		private volatile boolean indexLoaded;
+		Segment(long baseOffset, File file, boolean compressed) {
+			this.baseOffset = baseOffset;
+			this.file = file;
+			this.compressed = compressed;
+			this.indexLoaded = false;
+		}
+		void create(int capacity, long now) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+
+				// Space is only taken up on disk as it's written to, as the file is sparse
+				raf.setLength(capacity);
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			} finally {
+				raf.close();
+			}
+			created = now;
+			indexLoaded = true;
+		}
+		void map() throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+		}
+
+		/**
+		 * Works out how much of the segment has been written, and rebuilds its index, by reading through its records
+		 */
+		synchronized void scan() throws IOException {
+			if (compressed) {
+				DataInputStream input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+				try {
+					scan(input, Integer.MAX_VALUE);
+				} finally {
+					input.close();
+				}
+			} else {
+				if (buffer == null) map();
+				scan(new DataInputStream(new ByteBufferInputStream(buffer.duplicate())), buffer.capacity());
+			}
+			indexLoaded = true;
+		}
+		private void scan(DataInputStream input, int capacity) throws IOException {
+			int position = 0;
+			long records = 0;
+			indexCount = 0;
+			while (position + HEADER_SIZE <= capacity) {
+				int length;
+				long time;
+				try {
+					length = input.readInt() - HEADER_SIZE;
+					if (length < 0 || position + HEADER_SIZE + length > capacity) break;
+					time = input.readLong();
+					input.readByte();
+					input.skipNBytes(length);
+				} catch (EOFException e) {
+					break;
+				}
+				if (records == 0 && created == 0) created = time;
+				if (records % indexInterval == 0) addIndexEntry(baseOffset + records, position, time);
+				position += HEADER_SIZE + length;
+				records++;
+			}
+			size = position;
+			count = records;
+		}
+		void append(long offset, long time, byte stream, byte[] bytes, int length) {
+			int position = size;
+			ByteBuffer out = buffer.duplicate();
+			out.position(position);
+			out.putInt(HEADER_SIZE + length);
+			out.putLong(time);
+			out.put(stream);
+			out.put(bytes, 0, length);
+			if (count % indexInterval == 0) addIndexEntry(offset, position, time);
+			count++;
+			size = position + HEADER_SIZE + length;
+		}
+		private synchronized void addIndexEntry(long offset, int position, long time) {
+			if (indexCount == indexOffsets.length) {
+				indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+				indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+				indexTimes = Arrays.copyOf(indexTimes, indexCount * 2);
+			}
+			indexOffsets[indexCount] = offset;
+			indexPositions[indexCount] = position;
+			indexTimes[indexCount] = time;
+			indexCount++;
+		}
+
+		/**
+		 * Finds the position to start reading from, using the last index entry before what's wanted
+		 */
+		private synchronized int seek(long from, long since) {
+			int position = 0;
+			for (int ii = 0; ii < indexCount; ii++) {
+				if (from >= 0 ? indexOffsets[ii] > from : indexTimes[ii] > since) break;
+				position = indexPositions[ii];
+			}
+			return position;
+		}
+
+		/**
+		 * Writes the index to a file alongside the segment, so it needn't be rebuilt next time the segment is read
+		 */
+		synchronized void close() {
+			if (buffer != null) buffer.force();
+			File indexFile = new File(dir, baseName(baseOffset) + ".idx");
+			try {
+				DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+				try {
+					for (int ii = 0; ii < indexCount; ii++) {
+						output.writeLong(indexOffsets[ii]);
+						output.writeInt(indexPositions[ii]);
+						output.writeLong(indexTimes[ii]);
+					}
+				} finally {
+					output.close();
+				}
+			} catch (IOException e) {
+				System.err.println("Failed to write log index " + indexFile.getAbsolutePath());
+			}
+		}
+		synchronized void loadIndex() throws IOException {
+			if (indexLoaded) return;
+			File indexFile = new File(dir, baseName(baseOffset) + ".idx");
+			if (!indexFile.exists()) {
+				scan();
+				return;
+			}
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				long entries = indexFile.length() / INDEX_ENTRY_SIZE;
+				indexCount = 0;
+				for (long ii = 0; ii < entries; ii++) {
+					addIndexEntry(input.readLong(), input.readInt(), input.readLong());
+				}
+			} finally {
+				input.close();
+			}
+			if (indexCount > 0) created = indexTimes[0];
+			indexLoaded = true;
+		}
+
+		/**
+		 * Reads records from this segment, appending them to records
+		 */
+		void read(long from, long since, int limit, List<Record> records) throws IOException {
+			if (!indexLoaded) loadIndex();
+			int start = seek(from, since);
+			if (compressed) {
+				DataInputStream input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+				try {
+					input.skipNBytes(start);
+					readRecords(input, start, Integer.MAX_VALUE, from, since, limit, records);
+				} catch (EOFException e) {
+					// Reached the end of the segment
+				} finally {
+					input.close();
+				}
+				return;
+			}
+			MappedByteBuffer mapped = buffer;
+			if (mapped == null) {
+				synchronized (this) {
+					if (buffer == null) map();
+					mapped = buffer;
+				}
+			}
+
+			// Only read as far as the records which have been completely written
+			int end = (this == active) ? size : mapped.capacity();
+			ByteBuffer view = mapped.duplicate();
+			view.position(start);
+			view.limit(end);
+			readRecords(new DataInputStream(new ByteBufferInputStream(view)), start, end, from, since, limit, records);
+		}
+		private void readRecords(DataInputStream input, int position, int end, long from, long since, int limit, List<Record> records) throws IOException {
+			int added = 0;
+
+			// Work out the offset of the first record from the index entry it was found with
+			long offset = baseOffset;
+			synchronized (this) {
+				for (int ii = 0; ii < indexCount; ii++) {
+					if (indexPositions[ii] == position) {
+						offset = indexOffsets[ii];
+						break;
+					}
+				}
+			}
+			while (added < limit && position + HEADER_SIZE <= end) {
+				int length;
+				try {
+					length = input.readInt() - HEADER_SIZE;
+				} catch (EOFException e) {
+					break;
+				}
+				if (length < 0 || position + HEADER_SIZE + length > end) break;
+				long time = input.readLong();
+				byte stream = input.readByte();
+				boolean wanted = (from >= 0) ? offset >= from : time >= since;
+				if (wanted) {
+					byte[] bytes = new byte[length];
+					input.readFully(bytes);
+					records.add(new Record(offset, time, stream, new String(bytes, StandardCharsets.UTF_8)));
+					added++;
+				} else {
+					input.skipNBytes(length);
+				}
+				position += HEADER_SIZE + length;
+				offset++;
+			}
+		}
+
+		/**
+		 * Replaces the segment with a gzipped copy, which is read as a stream rather than mapped
+		 */
+		void compress() {
+			MappedByteBuffer mapped = buffer;
+			if (mapped == null || deleted) return;
+			File gzFile = new File(dir, baseName(baseOffset) + ".log.gz");
+			File tempFile = new File(dir, baseName(baseOffset) + ".log.gz.tmp");
+			try {
+				OutputStream output = new GZIPOutputStream(new FileOutputStream(tempFile), 65536);
+				try {
+					ByteBuffer view = mapped.duplicate();
+					view.position(0);
+					view.limit(size);
+					byte[] chunk = new byte[65536];
+					while (view.hasRemaining()) {
+						int length = Math.min(chunk.length, view.remaining());
+						view.get(chunk, 0, length);
+						output.write(chunk, 0, length);
+					}
+
+					// Keep the zero which marks the end
+					output.write(new byte[4]);
+				} finally {
+					output.close();
+				}
+				Files.move(tempFile.toPath(), gzFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				File original = file;
+				synchronized (this) {
+
+					// The segment may have been deleted whilst it was being compressed
+					if (deleted) {
+						gzFile.delete();
+						return;
+					}
+					file = gzFile;
+					compressed = true;
+					buffer = null;
+				}
+				original.delete();
+			} catch (IOException e) {
+				tempFile.delete();
+				System.err.println("Failed to compress log segment " + file.getAbsolutePath());
+			}
+		}
+		void delete() {
+			synchronized (this) {
+				deleted = true;
+				buffer = null;
+			}
+			file.delete();
+			new File(dir, baseName(baseOffset) + ".idx").delete();
+		}
+	}
+
+	/**
+	 * Reads from a ByteBuffer as if it were a stream, without copying it
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		public int read() {
+			if (!buffer.hasRemaining()) return -1;
+			return buffer.get() & 0xff;
+		}
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining()) return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+		public long skip(long n) {
+			int skipped = (int)Math.min(n, buffer.remaining());
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+	}
+}
@@ -1,33 +1,21 @@
 import java.io.* ;
 import java.net.* ;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 public final class Manager {
 	private static Properties settings = new Properties();
 	private static Service services;
+	private static ConnectionEngine connections;
 	public static void main(String argv[]) throws Exception {
 		settings.load(Manager.class.getClassLoader().getResourceAsStream("config.properties"));
 		
 		
 		setupServices();
 		
-		// Establish the listen socket.
-		ServerSocket serverSocket = new ServerSocket(services.getPort());
-    
-		// Process HTTP service requests in an infinite loop.
-		while (true) {
-			// Listen for a TCP connection request.
-
-			Socket clientSocket = serverSocket.accept();
-			PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-			// Construct an object to process the HTTP request message.
-			HttpRequest request = new HttpRequest( clientSocket );
-			// Create a new thread to process the request.
-			Thread thread = new Thread(request);
-			// Start the thread.
-			thread.start();
-
-		}
-		
+		// Establish the listen socket and process HTTP service requests in an infinite loop.
+		connections = new ConnectionEngine(services.getPort());
+		connections.serve();
 	}
 	public static String getSetting(String key) {
 		return settings.getProperty(key);
@@ -35,6 +23,13 @@ public final class Manager {
 	public static String getSetting(String key, String defaultValue) {
 		return settings.getProperty(key, defaultValue);
 	}
+	public static int getIntSetting(String key, int defaultValue) {
+		try {
+			return Integer.parseInt(settings.getProperty(key));
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
 	public static void log(String line) {
 		if (services != null) services.log(line);
 	}
@@ -45,6 +40,10 @@ public final class Manager {
 		if (services != null) services.logErr(e);
 	}
 
+	public static ConnectionEngine connections() {
+		return connections;
+	}
+
 	public static boolean authRunning() {
 		try {
 			return Service.getById("auth").isRunning();
@@ -59,17 +58,34 @@ public final class Manager {
 		return services.getDomain();
 	}
 	public static String readFile(FileInputStream fis) throws IOException {
-		
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
 		int bytes = 0;
-		StringBuffer contentBuffer = new StringBuffer("");
-		while((bytes = fis.read()) != -1)
-		    contentBuffer.append((char)bytes);
-		fis.close();
+		try {
+			while((bytes = fis.read(buffer)) != -1)
+				content.write(buffer, 0, bytes);
+		} finally {
+			fis.close();
+		}
 
-		return contentBuffer.toString();
+		return content.toString("UTF-8");
 	}
+
+	// Whether an update to varnish has been asked for but not yet queued
+	private static final AtomicBoolean varnishUpdatePending = new AtomicBoolean(false);
+
+	/**
+	 * Updates varnish after a short wait, so that updates asked for within varnish_debounce milliseconds of each other are done together
+	 */
 	public static void updateVarnish() {
-		services.execCommand("updatevarnish");
+		if (!varnishUpdatePending.compareAndSet(false, true)) return;
+		Executor later = CompletableFuture.delayedExecutor(getIntSetting("varnish_debounce", 500), TimeUnit.MILLISECONDS);
+		later.execute(new Runnable() {
+			public void run() {
+				varnishUpdatePending.set(false);
+				services.execCommand("updatevarnish");
+			}
+		});
 	}
 	
 	/**
@@ -0,0 +1,119 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A request to run one of a service's commands, which waits its turn in the service's OperationQueue
+ *
+ * Each operation can be looked up by id for a while after it's finished (the last operation_history of them are kept),
+ * so whoever asked for it can check on its progress at its status URL.
+ */
+class Operation {
+	private static final AtomicLong lastId = new AtomicLong();
+	private static final int historyLength = Math.max(1, Manager.getIntSetting("operation_history", 100));
+	private static final Map<Long, Operation> history = new LinkedHashMap<Long, Operation>() {
+		protected boolean removeEldestEntry(Map.Entry<Long, Operation> eldest) {
+			return size() > historyLength;
+		}
+	};
+	private final long id;
+	private final Service service;
+	private final Command command;
+	private final String key;
+	private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+	private volatile String status = "queued";
+	private volatile String error = null;
+	private volatile int requests = 1;
+	private final long queuedAt = System.currentTimeMillis();
+	private volatile long startedAt = 0;
+	private volatile long finishedAt = 0;
+	public Operation(Service service, Command command, String key) {
+		this.id = lastId.incrementAndGet();
+		this.service = service;
+		this.command = command;
+		this.key = key;
+		synchronized (history) {
+			history.put(id, this);
+		}
+	}
+	public static Operation get(long id) {
+		synchronized (history) {
+			return history.get(id);
+		}
+	}
+	public long getId() {
+		return id;
+	}
+	public String getKey() {
+		return key;
+	}
+	public String getStatusUrl() {
+		return "/api/operations/" + id;
+	}
+
+	/**
+	 * Completes once the operation has finished, whether or not it succeeded
+	 */
+	public CompletableFuture<Void> getDone() {
+		return done;
+	}
+
+	/**
+	 * Notes that the operation was asked for again whilst it was still queued, so it'll cover both requests
+	 */
+	public void coalesce() {
+		requests++;
+	}
+
+	/**
+	 * Runs the command, giving up waiting for it after operation_timeout seconds so the queue isn't held up indefinitely
+	 * The timeout is extended by kill_grace_period and output_drain_timeout, so a command which has to stop a process that
+	 * won't exit by itself doesn't time out, and the queue doesn't move on whilst it's still stopping.
+	 *
+	 * @returns CompletableFuture<Void> Completes once the operation has finished
+	 */
+	public CompletableFuture<Void> run() {
+		status = "running";
+		startedAt = System.currentTimeMillis();
+		CompletableFuture<Void> result;
+		try {
+			result = command.operate();
+		} catch (RuntimeException e) {
+			result = new CompletableFuture<Void>();
+			result.completeExceptionally(e);
+		}
+		long timeout = Manager.getIntSetting("operation_timeout", 60) + Manager.getIntSetting("kill_grace_period", 10) + Manager.getIntSetting("output_drain_timeout", 5);
+
+		// Only stop waiting on a copy, as timing out the command's own future would stop it carrying on (eg a restart would never start the service again)
+		return result.copy().orTimeout(timeout, TimeUnit.SECONDS).whenCompleteAsync((nothing, e) -> {
+			finishedAt = System.currentTimeMillis();
+			if (e == null) {
+				status = "done";
+			} else {
+				if (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+				status = (e instanceof TimeoutException) ? "timedout" : "failed";
+				error = e.toString();
+				service.logErr("Operation "+command.getName()+" "+status+": "+error);
+			}
+			done.complete(null);
+		}, Command.getScheduler());
+	}
+
+	/**
+	 * Describes the operation for the API
+	 */
+	public Map<String, Object> getInfo() {
+		Map<String, Object> info = new LinkedHashMap<String, Object>();
+		info.put("id", id);
+		info.put("service", service.getId());
+		info.put("command", key);
+		info.put("status", status);
+		info.put("requests", requests);
+		info.put("queued", queuedAt);
+		if (startedAt > 0) info.put("started", startedAt);
+		if (finishedAt > 0) info.put("finished", finishedAt);
+		if (error != null) info.put("error", error);
+		info.put("url", getStatusUrl());
+		return info;
+	}
+}
@@ -0,0 +1,62 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a service's commands one at a time, in the order they were asked for
+ *
+ * Asking for the same command as the last one still waiting in the queue doesn't add another, as running it once will do
+ * for both, so a burst of identical requests (eg several clicks on restart) only does the work once.  The queue holds at
+ * most operation_queue_length operations, beyond which requests are turned away.
+ */
+class OperationQueue {
+	private final Service service;
+	private final Deque<Operation> queued = new ArrayDeque<Operation>();
+	private final int maxLength = Math.max(1, Manager.getIntSetting("operation_queue_length", 16));
+	private Operation current = null;
+	public OperationQueue(Service service) {
+		this.service = service;
+	}
+
+	/**
+	 * Adds a command to the queue, or joins the last queued operation if it's for the same command
+	 *
+	 * @returns Operation The operation which will run the command
+	 * @throws RejectedExecutionException If the queue is full
+	 */
+	public Operation submit(Command command, String key) {
+		Operation operation;
+		synchronized (this) {
+			Operation last = queued.peekLast();
+			if (last != null && last.getKey().equals(key)) {
+				last.coalesce();
+				return last;
+			}
+			if (queued.size() >= maxLength) throw new RejectedExecutionException("Too many operations queued for "+service.getName());
+			operation = new Operation(service, command, key);
+			queued.add(operation);
+		}
+		next();
+		return operation;
+	}
+
+	/**
+	 * Starts the next operation, unless one's already running
+	 * Operations are started outside the lock, so commands can't end up waiting on the queue whilst it waits on them
+	 */
+	private void next() {
+		Operation operation;
+		synchronized (this) {
+			if (current != null || queued.isEmpty()) return;
+			operation = queued.poll();
+			current = operation;
+		}
+
+		// Carry on with the next one on the supervisor's threads, rather than whichever thread the operation finished on
+		operation.run().whenCompleteAsync((nothing, error) -> {
+			synchronized (OperationQueue.this) {
+				current = null;
+			}
+			next();
+		}, Command.getScheduler());
+	}
+}
@@ -0,0 +1,126 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * A file which a service's output is sent straight to, without passing through the JVM
+ *
+ * Nothing is read as the service writes.  Instead, when the output is wanted, the last few lines are read back by stepping
+ * backwards from the end of the file, so only the tail is ever read however big the file grows.
+ */
+class OutputFile {
+	private final File file;
+
+	// The length of the file when the log was last cleared.  Only output after this is shown
+	private volatile long clearedAt = 0;
+	public OutputFile(File file) {
+		this.file = file;
+		file.getParentFile().mkdirs();
+	}
+	public File getFile() {
+		return file;
+	}
+	public ProcessBuilder.Redirect getRedirect() {
+		return ProcessBuilder.Redirect.appendTo(file);
+	}
+
+	/**
+	 * Adds a line of the supervisor's own to the file, such as a message that the service has stopped
+	 * Each line is written in a single append, so it won't be split up by output from the service
+	 */
+	public synchronized void append(String line) {
+		try {
+
+			// Start on a new line if the service's last output didn't end with one
+			if (!endsWithNewline()) line = "\n" + line;
+			FileOutputStream output = new FileOutputStream(file, true);
+			try {
+				output.write((line + "\n").getBytes(OutputPump.getCharset()));
+			} finally {
+				output.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Can't write to " + file.getAbsolutePath());
+		}
+	}
+	private boolean endsWithNewline() throws IOException {
+		if (!file.isFile() || file.length() == 0) return true;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(raf.length() - 1);
+			return raf.read() == '\n';
+		} finally {
+			raf.close();
+		}
+	}
+	public void clear() {
+		clearedAt = file.length();
+	}
+	public boolean isEmpty() {
+		return file.length() <= getStart();
+	}
+
+	/**
+	 * Where to start reading from, which is the start of the file if it's been truncated or replaced since the log was cleared
+	 */
+	private long getStart() {
+		long start = clearedAt;
+		if (start > file.length()) {
+			start = 0;
+			clearedAt = 0;
+		}
+		return start;
+	}
+
+	/**
+	 * Reads the last lines of the file
+	 *
+	 * @param int maxLines The most lines to return
+	 * @param int maxBytes The most bytes to read from the end of the file.  If the lines are longer than this, the first is cut short
+	 */
+	public List<String> tail(int maxLines, int maxBytes) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		if (!file.isFile()) return lines;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long start = getStart();
+			long end = raf.length();
+			long limit = Math.max(start, end - maxBytes);
+
+			// A newline at the very end finishes the last line, rather than starting another
+			if (end > limit) {
+				raf.seek(end - 1);
+				if (raf.read() == '\n') end--;
+			}
+
+			// Step backwards a block at a time, until enough newlines have been found to make up maxLines
+			byte[] block = new byte[8192];
+			long from = limit;
+			long position = end;
+			int newlines = 0;
+			search:
+			while (position > limit) {
+				int length = (int)Math.min(block.length, position - limit);
+				position -= length;
+				raf.seek(position);
+				raf.readFully(block, 0, length);
+				for (int ii = length - 1; ii >= 0; ii--) {
+					if (block[ii] == '\n' && ++newlines == maxLines) {
+						from = position + ii + 1;
+						break search;
+					}
+				}
+			}
+			if (end <= from) return lines;
+			byte[] bytes = new byte[(int)(end - from)];
+			raf.seek(from);
+			raf.readFully(bytes);
+			for (String line : new String(bytes, OutputPump.getCharset()).split("\n", -1)) {
+				if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+				lines.add(line);
+			}
+		} finally {
+			raf.close();
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,272 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads the output of every child process on a single thread
+ *
+ * Process pipes can't be used with a selector, so instead the pump polls each stream for output which is already available,
+ * meaning it never blocks on one stream whilst others have output waiting.  When none of them have anything it sleeps,
+ * backing off up to output_poll_interval milliseconds.  Output is decoded with output_charset (rather than the platform
+ * default) and split into lines, and the lines read from each stream on each pass are handed to the service as one batch.
+ *
+ * A stream only ends when reading it gives end of file, rather than when the process exits, as there may still be output
+ * on its way.  As that read can block, once a process has exited its streams are each read to the end on a thread of their
+ * own, leaving the pump to carry on with the rest.
+ */
+class OutputPump implements Runnable {
+	private static OutputPump pump = null;
+	private final Queue<Source> sources = new ConcurrentLinkedQueue<Source>();
+	private final Charset charset;
+	private final long maxInterval;
+	private final int maxLineLength;
+	private final long drainTimeout;
+	private final ExecutorService drainer = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "output-drain");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private OutputPump() {
+		charset = getCharset();
+		maxInterval = Math.max(1, Manager.getIntSetting("output_poll_interval", 100));
+		maxLineLength = Math.max(1, Manager.getIntSetting("output_max_line_length", 65536));
+		drainTimeout = Math.max(0, Manager.getIntSetting("output_drain_timeout", 5)) * 1000L;
+	}
+
+	/**
+	 * The character set which services' output is in
+	 */
+	public static Charset getCharset() {
+		try {
+			return Charset.forName(Manager.getSetting("output_charset", "UTF-8"));
+		} catch (IllegalArgumentException e) {
+			Manager.logErr("Unknown output_charset, using UTF-8");
+			return StandardCharsets.UTF_8;
+		}
+	}
+	public static synchronized OutputPump get() {
+		if (pump == null) {
+			pump = new OutputPump();
+			Thread thread = new Thread(pump, "output-pump");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return pump;
+	}
+
+	/**
+	 * Starts reading a process's stdout and stderr into a service's log
+	 *
+	 * @returns CompletableFuture<Void> Completes once the process has exited and all its output has been read, or once
+	 * output_drain_timeout has passed since it exited if the streams still haven't ended
+	 */
+	public CompletableFuture<Void> attach(Process process, Service service, String name) {
+		Source stdOut = new Source(process, process.getInputStream(), service, name, false);
+		Source stdErr = new Source(process, process.getErrorStream(), service, name, true);
+		sources.add(stdOut);
+		sources.add(stdErr);
+		return CompletableFuture.allOf(stdOut.done, stdErr.done);
+	}
+	public void run() {
+		long interval = 1;
+		List<String> lines = new ArrayList<String>();
+		while (true) {
+			boolean busy = false;
+			Iterator<Source> iter = sources.iterator();
+			while (iter.hasNext()) {
+				Source source = iter.next();
+				try {
+					if (source.pump(lines)) busy = true;
+				} catch (IOException | RuntimeException e) {
+					source.failed(e);
+					source.finish(lines);
+				}
+				source.deliver(lines);
+				if (source.finished || source.draining) iter.remove();
+			}
+
+			// Go straight round again whilst there's output, otherwise wait a little longer each time up to the limit
+			if (busy) {
+				interval = 1;
+				continue;
+			}
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			interval = Math.min(interval * 2, maxInterval);
+		}
+	}
+
+	/**
+	 * One of a process's output streams
+	 */
+	private class Source {
+		final Process process;
+		final InputStream in;
+		final Service service;
+		final String name;
+		final boolean isErr;
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+		volatile boolean draining = false;
+		volatile boolean finished = false;
+		private final CharsetDecoder decoder;
+		private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+		private final CharBuffer chars = CharBuffer.allocate(8192);
+
+		// The start of a line whose end hasn't been read yet
+		private final StringBuilder partial = new StringBuilder();
+		Source(Process process, InputStream in, Service service, String name, boolean isErr) {
+			this.process = process;
+			this.in = in;
+			this.service = service;
+			this.name = name;
+			this.isErr = isErr;
+			this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+
+		/**
+		 * Reads whatever output is available without blocking, adding any complete lines to lines
+		 *
+		 * @returns boolean Whether any output was read
+		 */
+		boolean pump(List<String> lines) throws IOException {
+			int available = in.available();
+			if (available > 0) {
+				int count = in.read(bytes.array(), bytes.position(), Math.min(available, bytes.remaining()));
+				if (count > 0) {
+					bytes.position(bytes.position() + count);
+					decode(false, lines);
+					return true;
+				}
+			}
+
+			// Once the process has gone, there's no telling how much more is to come, so read up to the end of the stream
+			if (!process.isAlive()) drain();
+			return false;
+		}
+
+		/**
+		 * Reads the rest of the stream on a thread of its own, blocking until there's more or it ends
+		 * If it hasn't ended within output_drain_timeout, the stream is closed.  A read which is already blocked can't be
+		 * woken that way, but it returns as soon as whatever is holding the pipe open writes to it or exits (the command
+		 * stops any processes it knows it left behind once its output is done), and the thread then finds the stream closed.
+		 */
+		void drain() {
+			draining = true;
+			done.completeOnTimeout(null, drainTimeout, TimeUnit.MILLISECONDS).thenRun(() -> {
+				if (!finished) close();
+			});
+			drainer.execute(new Runnable() {
+				public void run() {
+					List<String> lines = new ArrayList<String>();
+					try {
+						while (true) {
+							int count = in.read(bytes.array(), bytes.position(), bytes.remaining());
+							if (count < 0 || done.isDone()) break;
+							bytes.position(bytes.position() + count);
+							decode(false, lines);
+							deliver(lines);
+						}
+					} catch (IOException | RuntimeException e) {
+						failed(e);
+					}
+					finish(lines);
+					deliver(lines);
+				}
+			});
+		}
+
+		/**
+		 * Hands lines over to the service
+		 * A failure to log them is reported to the supervisor's own log, so it can't stop the pump reading everything else
+		 */
+		void deliver(List<String> lines) {
+			if (lines.isEmpty()) return;
+			deliver(lines, isErr);
+			lines.clear();
+		}
+		private void deliver(List<String> lines, boolean toErr) {
+			try {
+				if (toErr) service.logErr(lines);
+				else service.log(lines);
+			} catch (RuntimeException e) {
+				Manager.logErr("Can't log output of " + name + " for " + service.getId() + ", " + lines.size() + " lines lost");
+				Manager.logErr(e);
+			}
+		}
+
+		/**
+		 * Reports a failure to read the stream
+		 */
+		void failed(Exception e) {
+
+			// Destroying a process closes its streams, so that's expected when a command is killed
+			if ("Stream closed".equals(e.getMessage())) return;
+			deliver(Arrays.asList("Can't read " + (isErr ? "err " : "") + "from " + name + ", " + e.getClass().getSimpleName() + ".", e.toString()), true);
+		}
+
+		/**
+		 * Passes on anything left over, including a final line with no newline, and closes the stream
+		 */
+		void finish(List<String> lines) {
+			if (finished) return;
+			finished = true;
+			decode(true, lines);
+			if (partial.length() > 0) {
+				lines.add(partial.toString());
+				partial.setLength(0);
+			}
+			close();
+			done.complete(null);
+		}
+		private void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Nothing more is going to be read anyway
+			}
+		}
+		private void decode(boolean endOfInput, List<String> lines) {
+			bytes.flip();
+			while (decoder.decode(bytes, chars, endOfInput).isOverflow()) {
+				splitLines(lines);
+			}
+			if (endOfInput) {
+				while (decoder.flush(chars).isOverflow()) {
+					splitLines(lines);
+				}
+			}
+			splitLines(lines);
+
+			// Keep any incomplete character for the next read
+			bytes.compact();
+		}
+		private void splitLines(List<String> lines) {
+			chars.flip();
+			while (chars.hasRemaining()) {
+				char c = chars.get();
+				if (c == '\n') {
+					int length = partial.length();
+					if (length > 0 && partial.charAt(length - 1) == '\r') partial.setLength(length - 1);
+					lines.add(partial.toString());
+					partial.setLength(0);
+				} else {
+					partial.append(c);
+
+					// Don't let output without any newlines use up memory indefinitely
+					if (partial.length() >= maxLineLength) {
+						lines.add(partial.toString());
+						partial.setLength(0);
+					}
+				}
+			}
+			chars.clear();
+		}
+	}
+}
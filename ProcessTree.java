@@ -0,0 +1,87 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Stops processes along with everything they started
+ *
+ * Each process is first asked to stop (with SIGTERM on unix), then any still running after the grace period are killed
+ * forcibly (with SIGKILL).  Descendants have to be listed before anything is stopped, as once a parent exits its children
+ * are adopted by init and can no longer be traced back to it.
+ */
+class ProcessTree {
+
+	/**
+	 * Lists a process and all its descendants, parents before children
+	 */
+	public static Set<ProcessHandle> list(ProcessHandle root) {
+		Set<ProcessHandle> processes = new LinkedHashSet<ProcessHandle>();
+		processes.add(root);
+		Iterator<ProcessHandle> descendants = root.descendants().iterator();
+		while (descendants.hasNext()) {
+			processes.add(descendants.next());
+		}
+		return processes;
+	}
+
+	/**
+	 * Lists several processes and all their descendants
+	 */
+	public static Set<ProcessHandle> list(Collection<ProcessHandle> roots) {
+		Set<ProcessHandle> processes = new LinkedHashSet<ProcessHandle>();
+		for (ProcessHandle root : roots) {
+			processes.addAll(list(root));
+		}
+		return processes;
+	}
+
+	/**
+	 * Asks processes to stop, forcibly killing any which haven't after the grace period
+	 *
+	 * @param Collection<ProcessHandle> processes The processes to stop
+	 * @param long grace How long to give them to stop by themselves, in milliseconds
+	 * @param Service service The service to report any forcible kills to
+	 * @returns CompletableFuture<Void> Completes once all of the processes have exited
+	 */
+	public static CompletableFuture<Void> terminate(final Collection<ProcessHandle> processes, long grace, ScheduledExecutorService scheduler, final Service service) {
+		List<CompletableFuture<ProcessHandle>> exits = new ArrayList<CompletableFuture<ProcessHandle>>();
+		for (ProcessHandle process : processes) {
+			if (!process.isAlive()) continue;
+			process.destroy();
+			exits.add(process.onExit());
+		}
+		CompletableFuture<Void> stopped = CompletableFuture.allOf(exits.toArray(new CompletableFuture<?>[exits.size()]));
+		if (exits.isEmpty()) return stopped;
+		final ScheduledFuture<?> force = scheduler.schedule(new Runnable() {
+			public void run() {
+				for (ProcessHandle process : processes) {
+					if (!process.isAlive()) continue;
+					service.logErr("Process " + process.pid() + " " + describe(process) + "didn't stop within the grace period, killing it");
+					process.destroyForcibly();
+				}
+			}
+		}, grace, TimeUnit.MILLISECONDS);
+		stopped.thenRun(() -> force.cancel(false));
+		return stopped;
+	}
+
+	/**
+	 * Describes a process by the command it's running, for logging
+	 */
+	public static String describe(ProcessHandle process) {
+		Optional<String> command = process.info().command();
+		if (!command.isPresent()) return "";
+		return "(" + command.get() + ") ";
+	}
+
+	/**
+	 * Lists the ids of processes, for logging
+	 */
+	public static String pids(Collection<ProcessHandle> processes) {
+		StringBuilder pids = new StringBuilder();
+		for (ProcessHandle process : processes) {
+			if (pids.length() > 0) pids.append(", ");
+			pids.append(process.pid()).append(' ').append(describe(process).trim());
+		}
+		return pids.toString().trim();
+	}
+}
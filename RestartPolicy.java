@@ -0,0 +1,47 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How soon to restart a service's main command after it stops, as set by the "restart" object in service.json
+ *
+ * A command which ran for at least stableuptime is restarted after initialdelay.  One which stops sooner is assumed to be
+ * failing, and each consecutive failure multiplies the delay by backoffmultiplier, up to maxdelay.  The delay is varied at
+ * random by up to the jitter fraction either way, so services which fail together don't all restart together.  After
+ * maxfailures consecutive failures the command is assumed to be crash looping, and isn't restarted until started by hand.
+ * All times are in milliseconds.
+ */
+class RestartPolicy {
+	private long initialdelay = 100;
+	private long maxdelay = 5 * 60 * 1000;
+	private double backoffmultiplier = 2;
+	private double jitter = 0.2;
+	private long stableuptime = 60 * 1000;
+	private int maxfailures = 10;
+
+	/**
+	 * Whether a run lasted long enough to count as stable, rather than a failure
+	 */
+	public boolean isStable(long uptime) {
+		return uptime >= stableuptime;
+	}
+
+	/**
+	 * Whether to give up restarting after this many consecutive failures (zero or less means never give up)
+	 */
+	public boolean isCrashLoop(int failures) {
+		return maxfailures > 0 && failures >= maxfailures;
+	}
+
+	/**
+	 * Works out how long to wait before the next restart
+	 *
+	 * @param int failures The number of consecutive failures, including the one just gone (zero if the last run was stable)
+	 * @returns long The delay in milliseconds
+	 */
+	public long getDelay(int failures) {
+		double delay = Math.max(0, initialdelay) * Math.pow(Math.max(1, backoffmultiplier), Math.max(0, failures - 1));
+		delay = Math.min(delay, Math.max(initialdelay, maxdelay));
+		double spread = Math.min(Math.max(jitter, 0), 1);
+		delay *= 1 + spread * (ThreadLocalRandom.current().nextDouble() * 2 - 1);
+		return Math.round(delay);
+	}
+}
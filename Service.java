@@ -5,50 +5,95 @@ import java.util.*;
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
 import java.lang.reflect.Type;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 public class Service {
 	
 	private File workingdir;
 	
 	private String id;
 	
-	private Queue<String> stdOut = new LinkedList<String>();
-	private Queue<String> stdErr = new LinkedList<String>();
+	// The number of lines of output to keep, the total number of characters those lines can take up, and the most of each line
+	private static final int outputLength = Manager.getIntSetting("output_length", 10);
+	private static final int outputSize = Manager.getIntSetting("output_size", outputLength * 256);
+	private static final int outputLineLength = Manager.getIntSetting("output_line_length", 4096);
+	private LogBuffer stdOut = new LogBuffer(outputLength, outputSize, outputLineLength);
+	private LogBuffer stdErr = new LogBuffer(outputLength, outputSize, outputLineLength);
+
+	// Everything the service has output, kept on disk (null if log_dir isn't set)
+	private final LogStore logStore;
+
+	// Files which the service's output goes straight to, if its settings ask for that (null otherwise)
+	private volatile OutputFile outputFile = null;
+	private volatile OutputFile errorFile = null;
+
+	// Sends each line of output to anyone watching the service's logs live
+	private final EventStream logEvents = new EventStream();
+
+	// Whether an error event has been sent since the log was last cleared
+	private final AtomicBoolean errorReported = new AtomicBoolean(false);
+
+	// Moved on whenever anything shown on the service's page changes, and (for things also shown in the list of all
+	// services) whenever anything shown on the index changes, so pages rendered before then are known to be out of date
+	private final AtomicLong stateVersion = new AtomicLong();
+	private static final AtomicLong summaryVersion = new AtomicLong();
+
+	// The service's page and the index, as last rendered
+	private volatile CachedOutput page = null;
+	private static volatile CachedOutput indexPage = null;
+	private static final Object indexLock = new Object();
 	
 	// Whether the service refers to this program
 	private final boolean isMaster;
+
+	// Whether the service has been started and is accepting connections, so can be routed to
+	private volatile boolean ready;
 	
-	// A list of the commands which can be run for this service
-	private Map<String, Command> commands = new HashMap<String, Command>();
-	private ServiceSettings settings = new ServiceSettings();
-	
-	// A list of all the services
-	private static Map<String, Service> serviceList =  new HashMap<String, Service>();
+	// The service's parts of the VCL, as last rendered
+	private VCLFragments vclFragments = null;
+
+	// Runs the service's commands one at a time
+	private final OperationQueue operations = new OperationQueue(this);
+
+	// A list of the commands which can be run for this service.  It's never changed once set, only replaced, so can be read without locking
+	private volatile Map<String, Command> commands;
+	private volatile ServiceSettings settings = new ServiceSettings();
 	
 	
 	private Service(String id, File workingdir) {
 		this.isMaster = id.equals("services");
+		this.ready = isMaster;
 		this.workingdir = workingdir;
 		this.id = id;
+		this.logStore = LogStore.open(id);
+		Map<String, Command> commands = new HashMap<String, Command>();
 		commands.put("clearlog", new ClearLogCommand(this));
 		commands.put("reloadconfig", new ReloadConfigCommand(this));
+		this.commands = Collections.unmodifiableMap(commands);
 		this.updateFromConfig();
+		commands = new HashMap<String, Command>(this.commands);
 		
 		// The "services" service (ie this program) is already running
 		if (isMaster) {
 			commands.put("reloadservicelist", new ReloadServiceListCommand(this));
 			commands.put("updatevarnish", new UpdateVarnishCommand(this));
 
-			// For other services, start the start command
+			// Other services are started by loadServiceList, once the services they depend on are ready
 		} else {
 			commands.put("start", new StartCommand(this));
 			commands.put("stop", new StopCommand(this));
 			commands.put("restart", new RestartCommand(this));
-			execCommand("start");
 		}
+		this.commands = Collections.unmodifiableMap(commands);
 	}
-	public void updateFromConfig() {
+	/**
+	 * Reads the service's settings from its service.json
+	 * The new settings and commands are each worked out on the side, then swapped in, so nothing reading them sees half an update
+	 */
+	public synchronized void updateFromConfig() {
 		File settingsFile = new File(this.workingdir, Manager.getSetting("service_json", "service.json"));
-		Map<String,String> serviceDirList;
+		ServiceSettings settings;
 		try {
 			String json = Manager.readFile(new FileInputStream(settingsFile));
 			Gson gson = new Gson();
@@ -68,6 +113,15 @@ public class Service {
 			return;
 		}
 		
+		if (settings == null) {
+			logErr("Empty service settings file: ".concat(settingsFile.getAbsolutePath()));
+			return;
+		}
+
+		// The settings go in first, as the main command takes its name from them
+		ServiceSettings previous = this.settings;
+		this.settings = settings;
+		Map<String, Command> commands = new HashMap<String, Command>(this.commands);
 		Iterator iter = settings.getCommands().entrySet().iterator();
 		while (iter.hasNext()) {
 			Map.Entry header = (Map.Entry)iter.next();
@@ -85,12 +139,63 @@ public class Service {
 		
 		// TODO: remove any commands which have been removed from JSON
 		
-		if (settings.name == null) logErr("Missing name in settings file: ".concat(settingsFile.getAbsolutePath()));
+		this.commands = Collections.unmodifiableMap(commands);
+		setUpOutputFiles();
+		stateChanged(true);
 		
+		if (settings.name == null) logErr("Missing name in settings file: ".concat(settingsFile.getAbsolutePath()));
+
+		// Only a change to where the service is found counts as a change to the registry, and not until it's been added
+		if (ServiceRegistry.get().get(id) != this) return;
+		if (previous.port != settings.port || !previous.getDomain().equals(settings.getDomain())) ServiceRegistry.changed();
+		EventBus.publish("configreloaded", this);
+	}
+
+	/**
+	 * Sets up the files for services whose output is redirected
+	 * They go in output_dir, named after the service, and are appended to by each run
+	 */
+	private void setUpOutputFiles() {
+		if (!settings.redirectoutput) {
+			outputFile = null;
+			errorFile = null;
+			return;
+		}
+		File outputDir = new File(Manager.getSetting("output_dir", "output"));
+		if (outputFile == null) outputFile = new OutputFile(new File(outputDir, id + ".out.log"));
+		if (settings.combinestdouterr) errorFile = null;
+		else if (errorFile == null) errorFile = new OutputFile(new File(outputDir, id + ".err.log"));
+	}
+
+	/**
+	 * Sends a process's output straight to the service's output files, if it has them
+	 *
+	 * @returns boolean Whether the output was redirected, in which case there's nothing to read from the process
+	 */
+	boolean redirectOutput(ProcessBuilder builder) {
+		OutputFile out = outputFile;
+		OutputFile err = errorFile;
+		if (out == null) return false;
+		builder.redirectOutput(out.getRedirect());
+		if (err == null) builder.redirectErrorStream(true);
+		else builder.redirectError(err.getRedirect());
+		return true;
+	}
+	public RestartPolicy getRestartPolicy() {
+		return settings.getRestartPolicy();
 	}
 	public int getPort() {
 		return settings.port;
 	}
+	public List<String> getDependencies() {
+		return settings.getDependencies();
+	}
+	public boolean isReady() {
+		return ready;
+	}
+	public void setReady() {
+		ready = true;
+	}
 	public String getName() {
 		if (settings.name == null) return id;
 		return settings.name;
@@ -100,14 +205,12 @@ public class Service {
 	}
 	public void log(String line) {
 		if (isMaster || id.equals("auth")) System.out.println(line);
-		int outputLength;
-		try {
-			outputLength = Integer.parseInt(Manager.getSetting("output_length"));
-		} catch (NumberFormatException e) {
-			outputLength = 10;
-		}
-		stdOut.add(line);
-		while (stdOut.size() > outputLength) stdOut.remove();
+		OutputFile out = outputFile;
+		if (out != null) out.append(line);
+		else stdOut.add(line);
+		stateChanged(false);
+		long offset = (logStore != null) ? logStore.append(LogStore.STDOUT, line) : -1;
+		publishLine("stdout", offset, line);
 	}
 	public void logErr(String line) {
 		if (settings.combinestdouterr) {
@@ -115,14 +218,103 @@ public class Service {
 			return;
 		}
 		if (isMaster || id.equals("auth")) System.err.println(line);
-		int outputLength;
-		try {
-			outputLength = Integer.parseInt(Manager.getSetting("output_length"));
-		} catch (NumberFormatException e) {
-			outputLength = 10;
+		OutputFile err = errorFile;
+		if (err != null) err.append(line);
+		else stdErr.add(line);
+		stateChanged(false);
+		long offset = (logStore != null) ? logStore.append(LogStore.STDERR, line) : -1;
+		publishLine("stderr", offset, line);
+		errorSeen(line);
+	}
+
+	/**
+	 * Logs a batch of lines, as read from a process's output
+	 */
+	public void log(List<String> lines) {
+		if (isMaster || id.equals("auth")) for (String line : lines) System.out.println(line);
+		stdOut.addAll(lines);
+		stateChanged(false);
+		for (String line : lines) {
+			long offset = (logStore != null) ? logStore.append(LogStore.STDOUT, line) : -1;
+			publishLine("stdout", offset, line);
+		}
+	}
+	public void logErr(List<String> lines) {
+		if (settings.combinestdouterr) {
+			log(lines);
+			return;
+		}
+		if (isMaster || id.equals("auth")) for (String line : lines) System.err.println(line);
+		stdErr.addAll(lines);
+		stateChanged(false);
+		for (String line : lines) {
+			long offset = (logStore != null) ? logStore.append(LogStore.STDERR, line) : -1;
+			publishLine("stderr", offset, line);
+		}
+		if (!lines.isEmpty()) errorSeen(lines.get(0));
+	}
+
+	/**
+	 * Announces the first error since the log was last cleared, which is when the service starts showing as having errors
+	 */
+	private void errorSeen(String line) {
+		if (!errorReported.compareAndSet(false, true)) return;
+		stateChanged(true);
+		Map<String, Object> details = new HashMap<String, Object>();
+		details.put("line", line);
+		EventBus.publish("error", this, details);
+	}
+
+	/**
+	 * Sends a line of output to live watchers, using its offset in the log store as the event id, so that watchers which
+	 * miss lines can fetch them from the logs api
+	 */
+	private void publishLine(String stream, long offset, String line) {
+		if (!logEvents.hasSubscribers()) return;
+		logEvents.publish(stream, (offset >= 0) ? Long.toString(offset) : null, line);
+	}
+	public EventStream getLogEvents() {
+		return logEvents;
+	}
+
+	/**
+	 * Notes a change to something shown about the service, so that pages showing it get rendered again
+	 *
+	 * @param boolean summary Whether the change shows in the list of all services (eg whether it's running), rather than only on the service's own page (eg its output)
+	 */
+	void stateChanged(boolean summary) {
+		stateVersion.incrementAndGet();
+		if (summary) summaryVersion.incrementAndGet();
+	}
+
+	/**
+	 * Describes the state shown on the service's page, which is different whenever anything on the page would be
+	 *
+	 * Output which goes straight to files changes without the service knowing, so the files' sizes are part of the state too
+	 */
+	private String getStateKey() {
+		String key = Long.toString(stateVersion.get());
+		OutputFile out = outputFile;
+		OutputFile err = errorFile;
+		if (out != null) key += "-" + out.getFile().length();
+		if (err != null) key += "-" + err.getFile().length();
+		return key;
+	}
+
+	/**
+	 * Describes the state shown on the index, made up of the list of services and what's shown about each of them
+	 */
+	private static String getIndexStateKey() {
+		ServiceRegistry.Snapshot snapshot = ServiceRegistry.get();
+		StringBuilder key = new StringBuilder();
+		key.append(snapshot.getVersion()).append("-").append(summaryVersion.get());
+
+		// Whether a service has errors depends on its error file for services whose output goes straight to files
+		for (Service service : snapshot.getServices()) {
+			OutputFile err = service.errorFile;
+			if (err != null) key.append(err.isEmpty() ? "" : "-" + service.getId());
 		}
-		stdErr.add(line);
-		while (stdErr.size() > outputLength) stdErr.remove();
+		return key.toString();
 	}
 	public void logErr(Exception e) {
 		Writer writer = new StringWriter();
@@ -133,31 +325,112 @@ public class Service {
 	void clearLog() {
 		stdErr.clear();
 		stdOut.clear();
+		OutputFile out = outputFile;
+		OutputFile err = errorFile;
+		if (out != null) out.clear();
+		if (err != null) err.clear();
+		errorReported.set(false);
+		stateChanged(true);
+		EventBus.publish("cleared", this);
+	}
+
+	/**
+	 * Gets the most recent lines of the service's stdout, either from memory or from the end of its output file
+	 */
+	public List<String> getStdOut() {
+		return getOutput(outputFile, stdOut);
+	}
+	public List<String> getStdErr() {
+		return getOutput(errorFile, stdErr);
+	}
+	private List<String> getOutput(OutputFile file, LogBuffer buffer) {
+		if (file == null) return buffer.snapshot();
+		try {
+
+			// Allow for multi-byte characters, as outputSize is counted in characters
+			return file.tail(outputLength, outputSize * 4);
+		} catch (IOException e) {
+			return Collections.singletonList("Can't read " + file.getFile().getAbsolutePath() + ": " + e.getMessage());
+		}
+	}
+	public boolean hasCommand(String key) {
+		return commands.containsKey(key);
 	}
 	public boolean execCommand(String key) {
-		return execCommand(key, false);
+		try {
+			return queueCommand(key) != null;
+		} catch (RejectedExecutionException e) {
+			logErr(e.getMessage());
+			return false;
+		}
 	}
-	public boolean execCommand(String key, boolean keepRunning) {
+
+	/**
+	 * Adds a command to the service's queue of operations, which runs them one at a time
+	 *
+	 * @returns Operation null if the service doesn't have the command
+	 * @throws RejectedExecutionException If too many operations are already queued
+	 */
+	public Operation queueCommand(String key) {
 		Command command = commands.get(key);
 		if (command == null) {
 			logErr("Can't find command '"+key+"'");
-			return false;
+			return null;
 		}
-		command.exec(keepRunning);
-		return true;
+		return operations.submit(command, key);
+	}
+
+	/**
+	 * Starts a command straight away, rather than queueing it
+	 * For use by operations which are already running in the queue
+	 */
+	public CompletableFuture<Void> startCommand(String key, boolean keepRunning) {
+		Command command = commands.get(key);
+		if (command == null) {
+			CompletableFuture<Void> missing = new CompletableFuture<Void>();
+			missing.completeExceptionally(new IllegalArgumentException("Can't find command '"+key+"'"));
+			return missing;
+		}
+		return command.start(keepRunning);
 	}
-	public void stopCommand(String key) {
+	public CompletableFuture<Void> stopCommand(String key) {
 		Command command = commands.get(key);
-		if (command == null) return;
-		command.kill();
+		if (command == null) return CompletableFuture.completedFuture(null);
+		return command.stop();
 	}
 	public boolean isRunning() {
 		if (isMaster) return true;
-		if (!commands.containsKey("main")) return false;
-		return commands.get("main").isRunning();
+		Command main = commands.get("main");
+		if (main == null) return false;
+		return main.isRunning();
+	}
+
+	/**
+	 * Reads lines from the service's stored output, oldest first
+	 *
+	 * @param long from The offset of the first line wanted, or -1 to start from the since time
+	 * @param long since The earliest time wanted, in milliseconds since the epoch
+	 * @param int limit The most lines to return
+	 * @returns Map<String, Object> null if the service's output isn't being stored
+	 */
+	public Map<String, Object> getLogs(long from, long since, int limit) throws IOException {
+		if (logStore == null) return null;
+		List<LogStore.Record> records = logStore.read(from, since, limit);
+		long next;
+		if (!records.isEmpty()) next = records.get(records.size() - 1).offset + 1;
+		else if (from >= 0) next = Math.min(Math.max(from, logStore.getFirstOffset()), logStore.getNextOffset());
+		else next = logStore.getNextOffset();
+		Map<String, Object> logs = new LinkedHashMap<String, Object>();
+		logs.put("first", logStore.getFirstOffset());
+		logs.put("next", next);
+		logs.put("records", records);
+		logs.put("stream", logEvents.getStats());
+		return logs;
 	}
 	public boolean hasError() {
-		return (stdErr.size() > 0);
+		OutputFile err = errorFile;
+		if (err != null) return !err.isEmpty();
+		return !stdErr.isEmpty();
 	}
 	public String getId() {
 		return id;
@@ -165,8 +438,31 @@ public class Service {
 	public String getDomain() {
 		return settings.getDomain();
 	}
-	public Template getFullTemplate() throws IOException {
+	/**
+	 * Gets the service's page, only rendering it again if something on it or the templates have changed
+	 */
+	public synchronized CachedOutput getPage() throws IOException {
 		Template serviceTemplate = new Template("service");
+		Template commandTemplate = new Template("commanditem");
+
+		// The state is read before the page is rendered, so a change part way through means it's rendered again next time
+		String key = getStateKey();
+		CachedOutput cached = page;
+		if (cached != null && cached.isCurrent(key, serviceTemplate.getCompiled(), commandTemplate.getCompiled())) return cached;
+		serviceTemplate = getFullTemplate(EventBus.getLastId());
+		page = CachedOutput.render(serviceTemplate, key, serviceTemplate.getCompiled(), commandTemplate.getCompiled());
+		return page;
+	}
+
+	/**
+	 * @param long lastEventId The latest event when the page's state was read, which its script catches up from.  A page
+	 * served from the cache keeps the id it was rendered with, so its script catches up on events it doesn't need to,
+	 * which is harmless as nothing the page shows has changed since
+	 */
+	public Template getFullTemplate(long lastEventId) throws IOException {
+		Template serviceTemplate = new Template("service");
+		serviceTemplate.setData("lasteventid", Long.toString(lastEventId));
+		serviceTemplate.setData("outputlength", Integer.toString(outputLength));
 		setBasicData(serviceTemplate);
 		setExtendedData(serviceTemplate);
 		return serviceTemplate;
@@ -176,20 +472,39 @@ public class Service {
 		setBasicData(serviceTemplate);
 		return serviceTemplate;
 	}
-	public Template getVCLBackend() throws IOException {
-		Template backendTemplate = new Template("backend", "vcl");
-		setBasicData(backendTemplate);
-		return backendTemplate;
+	public TemplateValue getVCLBackend() throws IOException {
+		return getVCLFragments().backend;
 	}
-	public Template getVCLRecvHost() throws IOException {
+	public TemplateValue getVCLRecvHost() throws IOException {
+		return getVCLFragments().recvHost;
+	}
+
+	/**
+	 * Gets the service's parts of the VCL, only rendering them again if the settings they use or the templates have changed
+	 * They're rendered from the settings which affect routing only, so they don't change whenever the service starts or stops
+	 */
+	private synchronized VCLFragments getVCLFragments() throws IOException {
+		Template backendTemplate = new Template("backend", "vcl");
 		Template recvHostTemplate = new Template("recvhost", "vcl");
-		setBasicData(recvHostTemplate);
+		String key = getId()+"\n"+getPort()+"\n"+getDomain()+"\n"+getName()+"\n"+workingdir.getAbsolutePath()+"\n"+settings.disablecaching;
+		VCLFragments fragments = vclFragments;
+		if (fragments != null && fragments.key.equals(key) && fragments.backendCompiled == backendTemplate.getCompiled() && fragments.recvHostCompiled == recvHostTemplate.getCompiled()) return fragments;
+		setRoutingData(backendTemplate);
+		setRoutingData(recvHostTemplate);
 		String customvcl = null;
 		if (settings.disablecaching) {
 				customvcl = "return (pass); #turn off caching for now";
 		}
 		recvHostTemplate.setData("custom", customvcl);
-		return recvHostTemplate;
+		vclFragments = new VCLFragments(key, backendTemplate, recvHostTemplate);
+		return vclFragments;
+	}
+	private void setRoutingData(Template template) {
+		template.setData("port", this.getPort()+"");
+		template.setData("path", workingdir.getAbsolutePath());
+		template.setData("name", this.getName());
+		template.setData("domain", this.getDomain());
+		template.setData("id", this.getId());
 	}
 	private void setBasicData(Template template) {
 		template.setData("port", this.getPort()+"");
@@ -203,24 +518,8 @@ public class Service {
 	}
 	private void setExtendedData(Template template) throws IOException {
 		
-		// Create a copy of the stdOut list in an attempt to prevent Concurrency Errors (as commands may be writing to it whilst this iterates through)
-		Queue<String> stdOutCopy = new LinkedList<String>(stdOut);
-		Iterator<String> outIter = stdOutCopy.iterator();
-		String stdOutContent = "";
-		while (outIter.hasNext()) {
-			stdOutContent += outIter.next();
-			stdOutContent += "\n";
-		}
-		template.setData("stdOut", stdOutContent);
-		
-		Queue<String> stdErrCopy = new LinkedList<String>(stdErr);
-		Iterator<String> errIter = stdErrCopy.iterator();
-		String stdErrContent = "";
-		while (errIter.hasNext()) {
-			stdErrContent += errIter.next();
-			stdErrContent += "\n";
-		}
-		template.setData("stdErr", stdErrContent);
+		template.setData("stdOut", new TemplateLines(getStdOut()));
+		template.setData("stdErr", new TemplateLines(getStdErr()));
 		
 		
 		Iterator<Map.Entry<String, Command>> commandIter = commands.entrySet().iterator();
@@ -241,11 +540,36 @@ public class Service {
 		if (settings.combinestdouterr) template.setData("outputclass", "combinestdouterr");
 		
 	}
-	public static Template getIndexTemplate() {
+
+	/**
+	 * Gets the index page, only rendering it again if something on it or the templates have changed
+	 */
+	public static CachedOutput getIndexPage() {
+		synchronized (indexLock) {
+			try {
+				Template indexTemplate = new Template("index");
+				Template itemTemplate = new Template("serviceitem");
+
+				String key = getIndexStateKey();
+				CachedOutput cached = indexPage;
+				if (cached != null && cached.isCurrent(key, indexTemplate.getCompiled(), itemTemplate.getCompiled())) return cached;
+				indexTemplate = getIndexTemplate(EventBus.getLastId());
+				if (indexTemplate == null) return null;
+				indexPage = CachedOutput.render(indexTemplate, key, indexTemplate.getCompiled(), itemTemplate.getCompiled());
+				return indexPage;
+			} catch (IOException e) {
+				Manager.logErr("Problem rendering index");
+				Manager.logErr(e);
+				return null;
+			}
+		}
+	}
+	public static Template getIndexTemplate(long lastEventId) {
 		try {
 			Template indexTemplate = new Template("index");
+			indexTemplate.setData("lasteventid", Long.toString(lastEventId));
 			TemplateGroup serviceTemplates = new TemplateGroup("html");
-			Iterator<Service> iter = serviceList.values().iterator();
+			Iterator<Service> iter = ServiceRegistry.get().getServices().iterator();
 			while (iter.hasNext()) {
 				Service service = iter.next();
 				serviceTemplates.add(service.getItemTemplate());
@@ -263,9 +587,12 @@ public class Service {
 			Template vclTemplate = new Template("services", "vcl");
 			TemplateGroup backendTemplates = new TemplateGroup("vcl");
 			TemplateGroup recvHostTemplates = new TemplateGroup("vcl");
-			Iterator<Service> iter = serviceList.values().iterator();
+			Iterator<Service> iter = ServiceRegistry.get().getServices().iterator();
 			while (iter.hasNext()) {
 				Service service = iter.next();
+
+				// Leave out services which are still starting up, until there's something to route to
+				if (!service.isReady()) continue;
 				backendTemplates.add(service.getVCLBackend());
 				recvHostTemplates.add(service.getVCLRecvHost());
 			}
@@ -279,19 +606,6 @@ public class Service {
 		}
 	}
 	
-	/**
-	 * Returns a mapping of all the services (running and not) and their domains
-	 */
-	public static Map getHosts() {
-		Map<String, String> hosts = new HashMap<String, String>();
-		Iterator<Service> iter = serviceList.values().iterator();
-		while (iter.hasNext()) {
-			Service service = iter.next();
-			hosts.put(service.getId(), service.getDomain());
-		}
-		return hosts;
-	}
-
 	/**
 	 * Loads the Service for the currently running Service (this is quite meta, but allows for easy logging etc)
 	 *
@@ -299,7 +613,7 @@ public class Service {
 	 */
 	public static Service loadServicesService() {
 		Service services = new Service("services", new File("."));
-		serviceList.put("services", services);
+		ServiceRegistry.add(Collections.singletonList(services));
 		return services;
 	}
 
@@ -308,7 +622,7 @@ public class Service {
 	 *
 	 * @returns void
 	 */
-	public static void loadServiceList() {
+	public static synchronized void loadServiceList() {
 		File serviceListFile = new File (Manager.getSetting("root_path", ""), Manager.getSetting("service_list", "service_list.json"));
 		Map<String,String> serviceDirList;
 		try {
@@ -331,32 +645,71 @@ public class Service {
 			return;
 		}
 
+		// New services are all added to the registry at once, so they appear together
+		ServiceRegistry.Snapshot registry = ServiceRegistry.get();
+		List<Service> added = new ArrayList<Service>();
 		for (Map.Entry<String,String> entry : serviceDirList.entrySet()) {
 			String serviceKey = entry.getKey();
-			if (serviceList.containsKey(serviceKey)) {
-				serviceList.get(serviceKey).updateFromConfig();
+			if (registry.contains(serviceKey)) {
+				registry.get(serviceKey).updateFromConfig();
 			} else {
 				File directory = new File(Manager.getSetting("root_path", ""), entry.getValue());
 				Service service = new Service(serviceKey, directory);
-				serviceList.put(serviceKey, service);
+				added.add(service);
 			}
 		}
+		ServiceRegistry.add(added);
 		Manager.updateVarnish();
+
+		// New services are each added to varnish once they've started up
+		Startup.start(added);
+	}
+	public static boolean exists(String id) {
+		return ServiceRegistry.get().contains(id);
 	}
 	public static Service getById(String id) {
-		Service service = serviceList.get(id);
+		Service service = ServiceRegistry.get().get(id);
 		if (service == null) throw new RuntimeException("Can't find " + id + " service");
 		return service;
 	}
 
+	/**
+	 * A service's rendered parts of the VCL, along with what they were rendered from
+	 */
+	static class VCLFragments {
+		final String key;
+		final CompiledTemplate backendCompiled;
+		final CompiledTemplate recvHostCompiled;
+		final TemplateValue backend;
+		final TemplateValue recvHost;
+		VCLFragments(String key, Template backendTemplate, Template recvHostTemplate) {
+			this.key = key;
+			this.backendCompiled = backendTemplate.getCompiled();
+			this.recvHostCompiled = recvHostTemplate.getCompiled();
+			this.backend = new TemplateString(backendTemplate.toString(), backendTemplate.getType());
+			this.recvHost = new TemplateString(recvHostTemplate.toString(), recvHostTemplate.getType());
+		}
+	}
+
 	static class ServiceSettings {
 		public int port;
 		public String name;
 		public boolean disablecaching;
 		public boolean combinestdouterr;
+		public boolean redirectoutput;
+		private RestartPolicy restart;
+		private List<String> dependencies;
 		private Map<String, String> commands;
 		private String subdomain;
 		private String domain;
+		public RestartPolicy getRestartPolicy() {
+			if (restart == null) restart = new RestartPolicy();
+			return restart;
+		}
+		public List<String> getDependencies() {
+			if (dependencies == null) return new ArrayList<String>();
+			return dependencies;
+		}
 		public Map<String, String> getCommands() {
 			if (commands == null) return new HashMap<String, String>();
 			return commands;
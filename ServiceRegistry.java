@@ -0,0 +1,139 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import com.google.gson.Gson;
+
+/**
+ * All the services, kept as an immutable snapshot which is swapped for a new one whenever anything changes
+ *
+ * Readers just take the current snapshot, so never lock and never see a change half made.  Each snapshot has a version
+ * number one higher than the last, which can be used to tell whether anything has changed since an earlier snapshot.
+ * Changes to where a service is found (its domain or port) count as changes too, and move the version on without
+ * changing the list.  Each snapshot also has a hosts index, which only moves on when a service's domain is different
+ * from the snapshot before, so anything which only cares about the hosts can tell when they change and wait for them to
+ * without holding on to a thread.
+ */
+class ServiceRegistry {
+	private static final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>(new Snapshot(null, new LinkedHashMap<String, Service>()));
+
+	// Those waiting for the hosts index to move on
+	private static final Set<CompletableFuture<Snapshot>> watchers = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The services as they were at one point in time
+	 */
+	static class Snapshot {
+		private final long version;
+		private final long hostsIndex;
+		private final Map<String, Service> services;
+
+		// Each service's domain, as it was when the snapshot was taken
+		private final Map<String, String> domains = new TreeMap<String, String>();
+
+		// The hosts as json, only worked out once per hosts index
+		private volatile CachedOutput hosts = null;
+		private Snapshot(Snapshot previous, Map<String, Service> services) {
+			this.services = Collections.unmodifiableMap(services);
+			for (Service service : services.values()) {
+				domains.put(service.getId(), service.getDomain());
+			}
+			if (previous == null) {
+				version = 0;
+				hostsIndex = 0;
+			} else if (domains.equals(previous.domains)) {
+				version = previous.version + 1;
+				hostsIndex = previous.hostsIndex;
+				hosts = previous.hosts;
+			} else {
+				version = previous.version + 1;
+				hostsIndex = previous.hostsIndex + 1;
+			}
+		}
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * A number which only moves on when the hosts do
+		 */
+		public long getHostsIndex() {
+			return hostsIndex;
+		}
+		public Service get(String id) {
+			return services.get(id);
+		}
+		public boolean contains(String id) {
+			return services.containsKey(id);
+		}
+		public Collection<Service> getServices() {
+			return services.values();
+		}
+
+		/**
+		 * Maps each service's id to its domain, as json
+		 */
+		public CachedOutput getHosts() {
+			CachedOutput output = hosts;
+			if (output == null) {
+				output = new CachedOutput("hosts", Long.toString(hostsIndex), "application/json", new Gson().toJson(domains).getBytes(StandardCharsets.UTF_8));
+				hosts = output;
+			}
+			return output;
+		}
+	}
+	public static Snapshot get() {
+		return current.get();
+	}
+	public static long getVersion() {
+		return current.get().getVersion();
+	}
+
+	/**
+	 * Adds services to the registry, all in one go
+	 */
+	public static synchronized void add(Collection<Service> services) {
+		if (services.isEmpty()) return;
+		Snapshot previous = current.get();
+		Map<String, Service> updated = new LinkedHashMap<String, Service>(previous.services);
+		for (Service service : services) {
+			updated.put(service.getId(), service);
+		}
+		publish(new Snapshot(previous, updated));
+	}
+
+	/**
+	 * Notes that one of the services has moved, such as its domain or port being changed in its config
+	 */
+	public static synchronized void changed() {
+		Snapshot previous = current.get();
+		publish(new Snapshot(previous, new LinkedHashMap<String, Service>(previous.services)));
+	}
+	private static void publish(Snapshot snapshot) {
+		Snapshot previous = current.getAndSet(snapshot);
+
+		// Only wake those watching the hosts if they've changed, rather than for nothing
+		if (snapshot.hostsIndex == previous.hostsIndex) return;
+		for (CompletableFuture<Snapshot> watcher : watchers) {
+			watcher.complete(snapshot);
+		}
+	}
+
+	/**
+	 * Waits for the hosts index to move on from the one given
+	 *
+	 * @param long hostsIndex The hosts index already known about
+	 * @param long timeout The most milliseconds to wait
+	 * @returns CompletableFuture<Snapshot> Completes with the new snapshot, or the current one if the wait times out first
+	 */
+	public static CompletableFuture<Snapshot> awaitHostsChange(long hostsIndex, long timeout) {
+		final CompletableFuture<Snapshot> change = new CompletableFuture<Snapshot>();
+		watchers.add(change);
+		change.whenComplete((snapshot, error) -> watchers.remove(change));
+
+		// Check again now the watcher's in place, in case there was a change in the meantime
+		Snapshot snapshot = get();
+		if (snapshot.hostsIndex != hostsIndex) change.complete(snapshot);
+		return change.completeOnTimeout(null, timeout, TimeUnit.MILLISECONDS).thenApply(changed -> (changed != null) ? changed : get());
+	}
+}
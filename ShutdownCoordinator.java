@@ -0,0 +1,123 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Stops every running command when the supervisor shuts down, using a single shutdown hook
+ *
+ * Commands register themselves whilst their processes are running, and unregister once they've exited, so only live
+ * processes are ever held on to.  On shutdown, services are stopped before the services they depend on, with those which
+ * don't depend on each other stopped in parallel.  Each command is given kill_grace_period to exit before being killed,
+ * and the time each took is logged.  The whole shutdown is limited to shutdown_timeout seconds.
+ */
+class ShutdownCoordinator {
+	private static final Set<Command> live = ConcurrentHashMap.newKeySet();
+	private static volatile boolean shuttingDown = false;
+	static {
+		try {
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					shutDown();
+				}
+			}, "shutdown-coordinator"));
+		} catch (IllegalStateException e) {
+
+			// The JVM is already shutting down, so there's nothing to coordinate
+			shuttingDown = true;
+		}
+	}
+
+	/**
+	 * Notes that a command has a process running, which will need stopping on shutdown
+	 */
+	public static void register(Command command) {
+		live.add(command);
+	}
+	public static void unregister(Command command) {
+		live.remove(command);
+	}
+
+	/**
+	 * The commands which currently have processes running
+	 */
+	public static Set<Command> getLive() {
+		return Collections.unmodifiableSet(live);
+	}
+
+	/**
+	 * Whether the supervisor is shutting down, in which case commands shouldn't be started or restarted
+	 */
+	public static boolean isShuttingDown() {
+		return shuttingDown;
+	}
+	private static void shutDown() {
+		shuttingDown = true;
+		long start = System.nanoTime();
+		long deadline = start + Manager.getIntSetting("shutdown_timeout", 30) * 1000000000L;
+		Map<Service, List<Command>> remaining = new LinkedHashMap<Service, List<Command>>();
+		int total = 0;
+		for (Command command : live) {
+			List<Command> commands = remaining.get(command.getService());
+			if (commands == null) {
+				commands = new ArrayList<Command>();
+				remaining.put(command.getService(), commands);
+			}
+			commands.add(command);
+			total++;
+		}
+		while (!remaining.isEmpty()) {
+
+			// Stop services in waves, each one only once nothing still running depends on it
+			List<Service> wave = new ArrayList<Service>();
+			for (Service service : remaining.keySet()) {
+				if (!isDependedOn(service, remaining.keySet())) wave.add(service);
+			}
+			if (wave.isEmpty()) {
+				Manager.logErr("Services depend on each other in a cycle, stopping them all together");
+				wave.addAll(remaining.keySet());
+			}
+			List<CompletableFuture<Void>> stops = new ArrayList<CompletableFuture<Void>>();
+			final Map<Command, Boolean> pending = new ConcurrentHashMap<Command, Boolean>();
+			for (Service service : wave) {
+				for (Command command : remaining.remove(service)) {
+					stops.add(stop(command, pending));
+				}
+			}
+			try {
+				CompletableFuture.allOf(stops.toArray(new CompletableFuture<?>[stops.size()])).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				for (Command command : pending.keySet()) {
+					Manager.logErr("Gave up waiting for command "+command.getName()+" of "+command.getService().getName()+" to stop");
+				}
+				return;
+			} catch (InterruptedException | ExecutionException e) {
+				Manager.logErr("Error whilst stopping commands");
+				Manager.logErr(e.toString());
+				return;
+			}
+		}
+		Manager.log("Stopped "+total+" commands in "+millisSince(start)+"ms");
+	}
+	private static CompletableFuture<Void> stop(final Command command, final Map<Command, Boolean> pending) {
+		final Service service = command.getService();
+		final long start = System.nanoTime();
+		service.log("Stopping command "+command.getName());
+		pending.put(command, true);
+		return command.shutDown().thenRun(() -> {
+			pending.remove(command);
+			service.log("Stopped command "+command.getName()+" in "+millisSince(start)+"ms");
+		});
+	}
+
+	/**
+	 * Whether any of the other services depend on a service
+	 */
+	private static boolean isDependedOn(Service service, Collection<Service> others) {
+		for (Service other : others) {
+			if (other != service && other.getDependencies().contains(service.getId())) return true;
+		}
+		return false;
+	}
+	private static long millisSince(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+}
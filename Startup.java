@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Starts a batch of services in the order given by the dependencies in their service.json
+ *
+ * A service is only started once all the services it depends on are ready, which is when their ports accept connections
+ * on the loopback address (or straight away for services without a port or a main command).
+ * Services which don't depend on each other start in parallel, with up to startup_concurrency of them starting at once.
+ * Each service is added to varnish as soon as it's ready, rather than waiting for the whole batch.  Dependencies on
+ * services outside the batch (ie ones which were already loaded) are taken as met.
+ *
+ * All the bookkeeping happens on a single thread, so none of it needs locking.
+ */
+class Startup {
+	private static ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "startup");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// Services which haven't been started yet, along with the ids of any services in the batch they're still waiting for
+	private final Map<String, Service> waiting = new TreeMap<String, Service>();
+	private final Map<String, Set<String>> blockers = new HashMap<String, Set<String>>();
+	private final int concurrency = Math.max(1, Manager.getIntSetting("startup_concurrency", 4));
+	private final long timeout = Manager.getIntSetting("startup_timeout", 60) * 1000L;
+	private final long interval = Math.max(10, Manager.getIntSetting("readiness_interval", 250));
+	private final long began = System.currentTimeMillis();
+	private final int total;
+	private int starting = 0;
+	private Startup(Collection<Service> services) {
+		for (Service service : services) {
+			waiting.put(service.getId(), service);
+		}
+		total = waiting.size();
+		for (Service service : waiting.values()) {
+			Set<String> ids = new HashSet<String>();
+			for (String dependency : service.getDependencies()) {
+				if (dependency.equals(service.getId())) continue;
+				if (waiting.containsKey(dependency)) ids.add(dependency);
+				else if (!Service.exists(dependency)) service.logErr("Depends on unknown service '"+dependency+"'");
+			}
+			blockers.put(service.getId(), ids);
+		}
+	}
+
+	/**
+	 * Starts some services, each once everything it depends on is ready
+	 *
+	 * @param Collection<Service> services The services to start, which shouldn't have been started already
+	 */
+	public static void start(Collection<Service> services) {
+		if (services.isEmpty()) return;
+		final Startup startup = new Startup(services);
+		scheduler.execute(new Runnable() {
+			public void run() {
+				startup.next();
+			}
+		});
+	}
+
+	/**
+	 * Starts as many of the services whose dependencies are ready as the concurrency limit allows
+	 */
+	private void next() {
+		while (starting < concurrency) {
+			Service service = pick();
+			if (service == null) break;
+			launch(service);
+		}
+		if (starting > 0) return;
+		if (waiting.isEmpty()) {
+			Manager.log("Started "+total+" services in "+(System.currentTimeMillis() - began)+"ms");
+			return;
+		}
+
+		// Nothing is starting, yet there are services left waiting, so they must be waiting on each other
+		for (Service service : waiting.values()) {
+			service.logErr("Dependencies form a cycle ("+String.join(", ", blockers.get(service.getId()))+"), starting anyway");
+			blockers.get(service.getId()).clear();
+		}
+		next();
+	}
+	private Service pick() {
+		for (Service service : waiting.values()) {
+			if (blockers.get(service.getId()).isEmpty()) return service;
+		}
+		return null;
+	}
+	private void launch(final Service service) {
+		waiting.remove(service.getId());
+		starting++;
+		final long launched = System.currentTimeMillis();
+
+		// A service with no main command has nothing to start or check on, so is ready straight away
+		if (!service.hasCommand("main")) {
+			ready(service, launched);
+			return;
+		}
+
+		// Start it through its queue like any other operation, and only check on it once the process has been launched
+		Operation start;
+		try {
+			start = service.queueCommand("start");
+		} catch (RejectedExecutionException e) {
+			service.logErr(e.getMessage());
+			start = null;
+		}
+		if (start == null) {
+			ready(service, launched);
+			return;
+		}
+
+		// A service without a port can't be checked, so it counts as ready as soon as it's been started
+		if (service.getPort() <= 0) {
+			start.getDone().thenRunAsync(new Runnable() {
+				public void run() {
+					ready(service, launched);
+				}
+			}, scheduler);
+			return;
+		}
+		start.getDone().thenRunAsync(new Runnable() {
+			public void run() {
+				if (acceptsConnections(service.getPort())) {
+					ready(service, launched);
+				} else if (System.currentTimeMillis() - launched >= timeout) {
+					service.logErr("Not accepting connections on port "+service.getPort()+" after "+(timeout / 1000)+" seconds, carrying on without it");
+					ready(service, launched);
+				} else {
+					scheduler.schedule(this, interval, TimeUnit.MILLISECONDS);
+				}
+			}
+		}, scheduler);
+	}
+	private void ready(Service service, long launched) {
+		starting--;
+		service.setReady();
+		service.log("Ready after "+(System.currentTimeMillis() - launched)+"ms");
+		EventBus.publish("ready", service);
+		for (Set<String> ids : blockers.values()) {
+			ids.remove(service.getId());
+		}
+		Manager.updateVarnish();
+		next();
+	}
+	private static boolean acceptsConnections(int port) {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Only checking it could be opened
+			}
+		}
+	}
+}
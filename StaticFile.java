@@ -0,0 +1,316 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A file from the data directory, served as is
+ *
+ * Small files are held in memory, larger ones are sent straight from the file.  Either way, entries are dropped if the file's
+ * size or modification time changes.
+ */
+class StaticFile {
+	private static File dataDir = canonicalDataDir();
+	private static Map<File, StaticFile> cache = new ConcurrentHashMap<File, StaticFile>();
+	private static DateTimeFormatter httpDate = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+	private final File file;
+	private final long length;
+	private final long lastModified;
+	private final String etag;
+	private final String contentType;
+
+	// The Content-Encoding of the file, or null if it's not encoded
+	private final String encoding;
+
+	// Only set for files small enough to keep in memory
+	private final byte[] content;
+
+	// The gzipped version of this file, created the first time a client asks for it
+	private volatile StaticFile gzipped = null;
+	private volatile boolean gzipFailed = false;
+	private StaticFile(File file) throws IOException {
+		this.file = file;
+		this.lastModified = file.lastModified();
+		this.length = file.length();
+		this.etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+		this.contentType = HttpResponse.contentType(file.getName());
+		this.encoding = null;
+		this.content = readContent(file, length);
+	}
+
+	/**
+	 * Creates an encoded version of another file
+	 * It takes its metadata from the original, except for its ETag, which must differ from the unencoded version's
+	 */
+	private StaticFile(File file, StaticFile original, String encoding) throws IOException {
+		this.file = file;
+		this.lastModified = original.lastModified;
+		this.length = file.length();
+		this.etag = original.etag.substring(0, original.etag.length() - 1) + "-" + encoding + "\"";
+		this.contentType = original.contentType;
+		this.encoding = encoding;
+		this.content = readContent(file, length);
+	}
+	private static byte[] readContent(File file, long length) throws IOException {
+		if (length > Manager.getIntSetting("static_cache_max_size", 65536)) return null;
+		return Files.readAllBytes(file.toPath());
+	}
+	private static File canonicalDataDir() {
+		try {
+			return new File("./data").getCanonicalFile();
+		} catch (IOException e) {
+			Manager.logErr("Can't resolve data directory");
+			Manager.logErr(e);
+			return new File("./data").getAbsoluteFile();
+		}
+	}
+
+	/**
+	 * Finds a file in the data directory
+	 *
+	 * @param String path The path requested, relative to the data directory
+	 * @returns StaticFile null if the file doesn't exist, or lies outside the data directory
+	 */
+	public static StaticFile get(String path) throws IOException {
+		File file = new File(dataDir, path).getCanonicalFile();
+
+		// Don't let paths containing ".." or symlinks escape from the data directory
+		if (!file.getPath().startsWith(dataDir.getPath() + File.separator)) return null;
+		if (!file.isFile()) {
+			cache.remove(file);
+			return null;
+		}
+		StaticFile staticFile = cache.get(file);
+		if (staticFile != null && staticFile.lastModified == file.lastModified() && staticFile.length == file.length()) return staticFile;
+		staticFile = new StaticFile(file);
+		cache.put(file, staticFile);
+		return staticFile;
+	}
+	public long getLength() {
+		return length;
+	}
+	public String getETag() {
+		return etag;
+	}
+	public String getLastModified() {
+		return formatDate(lastModified);
+	}
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Sets the headers which describe this file on a response
+	 */
+	public void setHeaders(HttpResponse response) {
+		response.setHeader("Content-type", contentType);
+		response.setHeader("ETag", etag);
+		response.setHeader("Last-Modified", getLastModified());
+		response.setHeader("Cache-Control", "max-age=" + Manager.getIntSetting("static_max_age", 300));
+		response.setHeader("Accept-Ranges", "bytes");
+		if (encoding != null) response.setHeader("Content-Encoding", encoding);
+		if (isCompressible()) response.setHeader("Vary", "Accept-Encoding");
+	}
+
+	/**
+	 * Whether the file's type is worth compressing (most image and media formats are compressed already)
+	 */
+	public boolean isCompressible() {
+		return contentType.startsWith("text/") || contentType.endsWith("javascript") || contentType.endsWith("json")
+			|| contentType.endsWith("xml") || contentType.equals("image/x-icon");
+	}
+
+	/**
+	 * Gets a gzipped version of this file, served from a .gz file alongside it
+	 * The .gz file is created the first time it's needed, and recreated if it doesn't match this file's modification time
+	 *
+	 * @returns StaticFile null if the file isn't worth compressing, or a compressed version can't be made
+	 */
+	public StaticFile getGzipped() {
+		if (encoding != null || gzipFailed || !isCompressible()) return null;
+		StaticFile variant = gzipped;
+		if (variant != null) return variant;
+		File gzFile = new File(file.getPath() + ".gz");
+		try {
+			if (!gzFile.isFile() || gzFile.lastModified() != lastModified) compressTo(gzFile);
+			variant = new StaticFile(gzFile, this, "gzip");
+		} catch (IOException e) {
+			Manager.logErr("Can't create compressed copy of " + file.getName());
+			Manager.logErr(e);
+			gzipFailed = true;
+			return null;
+		}
+
+		// Some files get bigger when compressed, in which case just send them as they are
+		if (variant.length >= length) {
+			gzFile.delete();
+			gzipFailed = true;
+			return null;
+		}
+		gzipped = variant;
+		return variant;
+	}
+
+	/**
+	 * Writes a gzipped copy of this file, which replaces any existing copy in a single step so it's never seen half written
+	 */
+	private void compressTo(File gzFile) throws IOException {
+		File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			OutputStream output = new GZIPOutputStream(new FileOutputStream(tempFile), 8192);
+			try {
+				Files.copy(file.toPath(), output);
+			} finally {
+				output.close();
+			}
+
+			// Mark the compressed copy with the original's modification time, so it's clear which version it came from
+			tempFile.setLastModified(lastModified);
+			Files.move(tempFile.toPath(), gzFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Works out whether the client's copy of the file is still current, based on its conditional request headers
+	 * If-None-Match takes precedence, as modification times only have a precision of seconds
+	 */
+	public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) tag = tag.substring(2);
+				if (tag.equals("*") || tag.equals(etag)) return true;
+			}
+			return false;
+		}
+		if (ifModifiedSince != null) {
+			try {
+				long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+				return lastModified / 1000 <= since;
+			} catch (DateTimeParseException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Works out whether a partial request can be served, based on the client's If-Range header
+	 * Only strong validators count, so a weak ETag or a date which doesn't exactly match means the whole file is needed
+	 */
+	public boolean isCurrent(String ifRange) {
+		if (ifRange == null) return true;
+		if (ifRange.startsWith("\"")) return ifRange.equals(etag);
+		if (ifRange.startsWith("W/")) return false;
+		try {
+			return ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond() == lastModified / 1000;
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Parses a Range header into the byte ranges of this file which it asks for
+	 *
+	 * @param String header The value of the Range header
+	 * @returns List<Range> The satisfiable ranges (empty if there are none), or null if the header should be ignored
+	 */
+	public List<Range> parseRanges(String header) {
+		if (!header.startsWith("bytes=")) return null;
+		String[] specs = header.substring(6).split(",");
+
+		// Guard against requests for huge numbers of tiny ranges
+		if (specs.length > Manager.getIntSetting("static_max_ranges", 16)) return null;
+		List<Range> ranges = new ArrayList<Range>();
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash == -1) return null;
+			long start, end;
+			try {
+				if (dash == 0) {
+
+					// A suffix range, asking for the last n bytes
+					long suffix = Long.parseLong(spec.substring(1));
+					if (suffix < 0) return null;
+					if (suffix == 0) continue;
+					start = Math.max(0, length - suffix);
+					end = length - 1;
+				} else {
+					start = Long.parseLong(spec.substring(0, dash));
+					end = (dash == spec.length() - 1) ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+					if (start < 0 || end < start) return null;
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (start >= length) continue;
+			ranges.add(new Range(start, Math.min(end, length - 1)));
+		}
+		return ranges;
+	}
+
+	/**
+	 * Writes the file's content to the connection
+	 */
+	public void writeTo(OutputStream out, WritableByteChannel channel) throws IOException {
+		writeTo(out, channel, 0, length);
+	}
+
+	/**
+	 * Writes part of the file's content to the connection
+	 * Cached files go through the connection's stream along with the headers.  Others are transferred by the OS straight
+	 * from the file to the connection's channel, without being copied through the JVM
+	 */
+	public void writeTo(OutputStream out, WritableByteChannel channel, long start, long count) throws IOException {
+		if (content != null) {
+			out.write(content, (int)start, (int)count);
+			return;
+		}
+
+		// Make sure everything before this part has gone before the file is written to the channel directly
+		out.flush();
+		FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long position = start;
+			long end = start + count;
+			while (position < end) {
+				long sent = fileChannel.transferTo(position, end - position, channel);
+				if (sent <= 0) break;
+				position += sent;
+			}
+
+			// The Content-Length has already been sent, so if the file has shrunk the connection can't be used any more
+			if (position < end) throw new IOException("File " + file.getName() + " changed whilst being sent");
+		} finally {
+			fileChannel.close();
+		}
+	}
+	public static String formatDate(long millis) {
+		return httpDate.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * An inclusive range of byte positions within a file
+	 */
+	static class Range {
+		public final long start;
+		public final long end;
+		public Range(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+		public long getLength() {
+			return end - start + 1;
+		}
+		public String toContentRange(long total) {
+			return "bytes " + start + "-" + end + "/" + total;
+		}
+	}
+}
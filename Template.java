@@ -1,4 +1,5 @@
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.*;
 abstract class TemplateValue {
 	protected String type;
@@ -16,24 +17,83 @@ abstract class TemplateValue {
 		String output = this.toString();
 		if (output == null) {
 			Manager.logErr("null toString() " + this.getClass());
+			return "";
 		}
-		if (escType.equals("html")) {
-			
-			// Any non-html values put into an html template should be html encoded
-			if (escType.equals("html") && !this.getType().equals("html")) {
-				output = output.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
-			}
-			
-			// Escape any dollar signs in the values in case they get mixed up with placeholders
-			output = output.replace("$", "\\$");
+		
+		// Any non-html values put into an html template should be html encoded
+		if (needsEscaping(escType)) {
+			output = escapeHtml(output);
 		}
 		return output;
 	}
+	
+	/**
+	 * Writes the value straight to a writer, escaped for use in a template
+	 * Subclasses which can produce their output piece by piece should override this, so it's never held as one String
+	 * @param Writer out The writer to send the output to
+	 * @param String escType The type of the template
+	 */
+	public void writeTo(Writer out, String escType) throws IOException {
+		out.write(getEscaped(escType));
+	}
+	
+	/**
+	 * Encodes the characters which are special in html, in a single pass over the string
+	 * @param String input The string to encode
+	 * @returns String The input itself if nothing needed encoding
+	 */
+	public static String escapeHtml(String input) {
+		if (!hasHtmlSpecialChars(input)) return input;
+		StringWriter output = new StringWriter(input.length() + 16);
+		try {
+			escapeHtml(input, output);
+		} catch (IOException e) {
+			
+			// StringWriters don't throw IOExceptions
+		}
+		return output.toString();
+	}
+	
+	/**
+	 * Writes a string to a writer, encoding the characters which are special in html
+	 */
+	public static void escapeHtml(String input, Writer out) throws IOException {
+		int start = 0;
+		for (int ii = 0; ii < input.length(); ii++) {
+			String entity = htmlEntity(input.charAt(ii));
+			if (entity == null) continue;
+			out.write(input, start, ii - start);
+			out.write(entity);
+			start = ii + 1;
+		}
+		out.write(input, start, input.length() - start);
+	}
+	private static boolean hasHtmlSpecialChars(String input) {
+		for (int ii = 0; ii < input.length(); ii++) {
+			if (htmlEntity(input.charAt(ii)) != null) return true;
+		}
+		return false;
+	}
+	private static String htmlEntity(char c) {
+		switch (c) {
+			case '&': return "&amp;";
+			case '<': return "&lt;";
+			case '>': return "&gt;";
+			case '"': return "&quot;";
+			default: return null;
+		}
+	}
+	
+	/**
+	 * Whether a value of this type needs encoding to go into a template of the given type
+	 */
+	protected boolean needsEscaping(String escType) {
+		return escType.equals("html") && !this.getType().equals("html");
+	}
 }
 public class Template extends TemplateValue{
 	private static File templateDir = new File(Manager.getSetting("template_dir", ""));
-	private File templateFile;
-	private String content;
+	private CompiledTemplate compiled;
 	private String type;
 	private Map<String, TemplateValue> data;
 	public Template(String name) throws IOException {
@@ -41,8 +101,7 @@ public class Template extends TemplateValue{
 	}
 	public Template(String name, String type) throws IOException  {
 		this.type = type;
-		templateFile = new File(templateDir, name + "." + type);
-		content = Manager.readFile(new FileInputStream(templateFile));
+		compiled = CompiledTemplate.get(new File(templateDir, name + "." + type));
 		data = new HashMap<String, TemplateValue>();
 		if (type.equals("html")) setData("rootdomain", Service.getById("root").getDomain());
 	}
@@ -53,32 +112,124 @@ public class Template extends TemplateValue{
 		data.put(key, val);
 	}
 	public String getFileName() {
-		return templateFile.getName();
+		return compiled.getFileName();
+	}
+
+	/**
+	 * The compiled template file, which is replaced whenever the file changes
+	 */
+	public CompiledTemplate getCompiled() {
+		return compiled;
 	}
 	public String getType() {
 		return type;
 	}
 	public String toString() {
-		String output = new String(content);
-		Iterator<Map.Entry<String, TemplateValue>> iter = data.entrySet().iterator();
-		
-        while (iter.hasNext()) {
-			Map.Entry<String, TemplateValue> entry = iter.next();
-			String key = entry.getKey();
-			TemplateValue val = entry.getValue();
-			if (key == null || val == null) continue;
-			key = "$"+key+"$";
+		StringWriter output = new StringWriter(compiled.getLength());
+		try {
+			writeTo(output);
+		} catch (IOException e) {
 			
-			output = output.replace(key, val.getEscaped(type));
-        }
-		
-		
-		// Replace any placeholders which haven't got data with empty strings
-		output  = output.replaceAll("\\$.+?\\$", "");
+			// StringWriters don't throw IOExceptions
+		}
+		return output.toString();
+	}
+	
+	/**
+	 * Renders the template to a writer, without building up the whole output in memory
+	 */
+	public void writeTo(Writer out) throws IOException {
+		String[] literals = compiled.getLiterals();
+		String[] placeholders = compiled.getPlaceholders();
+		for (int ii = 0; ii < placeholders.length; ii++) {
+			out.write(literals[ii]);
+			
+			// Placeholders which haven't got data are replaced with empty strings
+			TemplateValue val = data.get(placeholders[ii]);
+			if (val != null) val.writeTo(out, type);
+		}
+		out.write(literals[placeholders.length]);
+	}
+	public void writeTo(Writer out, String escType) throws IOException {
 		
-		// Unescape remaining dollar signs
-		output = output.replace("\\$", "$");
-		return output;
+		// Encoding needs the whole output, but templates are only ever nested in templates of the same type
+		if (needsEscaping(escType)) {
+			super.writeTo(out, escType);
+		} else {
+			writeTo(out);
+		}
+	}
+}
+
+/**
+ * A template file split up into literal text and the placeholders between them
+ * Compiled templates are shared between all Templates using the same file, and recompiled if the file changes
+ */
+class CompiledTemplate {
+	private static Map<File, CompiledTemplate> cache = new ConcurrentHashMap<File, CompiledTemplate>();
+	private final File file;
+	private final long lastModified;
+	private final int length;
+	
+	// There is always one more literal than placeholders, as the template starts and ends with a (possibly empty) literal
+	private final String[] literals;
+	private final String[] placeholders;
+	private CompiledTemplate(File file, long lastModified, String content) {
+		this.file = file;
+		this.lastModified = lastModified;
+		this.length = content.length();
+		List<String> literalList = new ArrayList<String>();
+		List<String> placeholderList = new ArrayList<String>();
+		int start = 0;
+		int pos = 0;
+		int open;
+		while ((open = content.indexOf('$', pos)) != -1) {
+			int close = content.indexOf('$', open + 1);
+			if (close == -1) break;
+			
+			// Placeholders must have a name, and can't span more than one line
+			if (close == open + 1 || hasLineBreak(content, open, close)) {
+				pos = open + 1;
+				continue;
+			}
+			literalList.add(content.substring(start, open));
+			placeholderList.add(content.substring(open + 1, close));
+			start = pos = close + 1;
+		}
+		literalList.add(content.substring(start));
+		literals = literalList.toArray(new String[literalList.size()]);
+		placeholders = placeholderList.toArray(new String[placeholderList.size()]);
+	}
+	private static boolean hasLineBreak(String content, int start, int end) {
+		for (int ii = start; ii < end; ii++) {
+			char c = content.charAt(ii);
+			if (c == '\n' || c == '\r') return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Gets the compiled version of a template file, only reading the file if it has changed since it was last compiled
+	 */
+	public static CompiledTemplate get(File file) throws IOException {
+		long lastModified = file.lastModified();
+		CompiledTemplate compiled = cache.get(file);
+		if (compiled != null && compiled.lastModified == lastModified) return compiled;
+		compiled = new CompiledTemplate(file, lastModified, Manager.readFile(new FileInputStream(file)));
+		cache.put(file, compiled);
+		return compiled;
+	}
+	public String getFileName() {
+		return file.getName();
+	}
+	public int getLength() {
+		return length;
+	}
+	public String[] getLiterals() {
+		return literals;
+	}
+	public String[] getPlaceholders() {
+		return placeholders;
 	}
 }
 
@@ -88,20 +239,66 @@ public class Template extends TemplateValue{
 class TemplateString extends TemplateValue {
 	private String value;
 	public TemplateString(String value) {
+		this(value, "text");
+	}
+
+	/**
+	 * @param String type The type of template the value was rendered from, for values which are already rendered templates
+	 */
+	public TemplateString(String value, String type) {
 		if (value == null) throw new NullPointerException();
-		this.type = "text";
+		this.type = type;
 		this.value = value;
 	}
 	public String toString() {
 		return value;
 	}
+	public void writeTo(Writer out, String escType) throws IOException {
+		if (needsEscaping(escType)) {
+			escapeHtml(value, out);
+		} else {
+			out.write(value);
+		}
+	}
+}
+
+/**
+ * A list of lines of text, such as a service's output, which are written out one at a time
+ */
+class TemplateLines extends TemplateValue {
+	private Collection<String> lines;
+	public TemplateLines(Collection<String> lines) {
+		this.type = "text";
+		this.lines = lines;
+	}
+	public String toString() {
+		StringWriter output = new StringWriter();
+		try {
+			writeTo(output, type);
+		} catch (IOException e) {
+			
+			// StringWriters don't throw IOExceptions
+		}
+		return output.toString();
+	}
+	public void writeTo(Writer out, String escType) throws IOException {
+		boolean escape = needsEscaping(escType);
+		for (String line : lines) {
+			if (escape) {
+				escapeHtml(line, out);
+			} else {
+				out.write(line);
+			}
+			out.write("\n");
+		}
+	}
 }
 
 class TemplateGroup extends TemplateValue {
 	private List<TemplateValue> values;
 	public TemplateGroup(String type) {
 		this.type = type;
-		values = new LinkedList<TemplateValue>();
+		values = new ArrayList<TemplateValue>();
 	}
 	public void add(TemplateValue val) {
 		
@@ -109,21 +306,25 @@ class TemplateGroup extends TemplateValue {
 		if (val.getType().equals(type)) values.add(val);
 	}
 	public String getEscaped(String escType) {
-		String output = "";
-		Iterator<TemplateValue> iter = values.iterator();
-		while (iter.hasNext()) {
-			TemplateValue val = iter.next();
-			output += val.getEscaped(escType);
+		StringWriter output = new StringWriter();
+		try {
+			writeTo(output, escType);
+		} catch (IOException e) {
+			
+			// StringWriters don't throw IOExceptions
+		}
+		return output.toString();
+	}
+	public void writeTo(Writer out, String escType) throws IOException {
+		for (TemplateValue val : values) {
+			val.writeTo(out, escType);
 		}
-		return output;
 	}
 	public String toString() {
-		String output = "";
-		Iterator<TemplateValue> iter = values.iterator();
-		while (iter.hasNext()) {
-			TemplateValue val = iter.next();
-			output += val.toString();
+		StringBuilder output = new StringBuilder();
+		for (TemplateValue val : values) {
+			output.append(val.toString());
 		}
-		return output;
+		return output.toString();
 	}
-}
\ No newline at end of file
+}
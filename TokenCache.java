@@ -0,0 +1,152 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which agent each auth token belongs to, so the auth service isn't asked about every request
+ *
+ * Valid and invalid tokens are both cached, each with their own time to live.  The cache holds at most maxSize tokens,
+ * evicting whichever was used least recently.  Concurrent lookups of a token which isn't cached share a single load.
+ */
+class TokenCache {
+
+	/**
+	 * Finds out which agent a token belongs to
+	 */
+	interface Loader {
+
+		/**
+		 * @returns CompletableFuture<Integer> Completes with the agentid if the token is valid, null if it isn't, or zero if it couldn't be checked (which isn't cached)
+		 */
+		CompletableFuture<Integer> load(String token);
+	}
+
+	private final Loader loader;
+	private final int maxSize;
+	private final long ttl;
+	private final long negativeTtl;
+	private final LinkedHashMap<String, Entry> entries;
+	private final ConcurrentHashMap<String, CompletableFuture<Integer>> inFlight = new ConcurrentHashMap<String, CompletableFuture<Integer>>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+
+	/**
+	 * @param Loader loader Looks up tokens which aren't in the cache
+	 * @param int maxSize The most tokens to hold at once
+	 * @param long ttl How long to remember valid tokens for, in milliseconds
+	 * @param long negativeTtl How long to remember invalid tokens for, in milliseconds
+	 */
+	public TokenCache(Loader loader, int maxSize, long ttl, long negativeTtl) {
+		this.loader = loader;
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+
+		// Access ordered, so that the eldest entry is always the least recently used
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() <= TokenCache.this.maxSize) return false;
+				evictions.incrementAndGet();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Gets the agentid for a token, waiting for it to load if it isn't cached
+	 *
+	 * @returns Integer The agentid, null if the token is invalid, or zero if it couldn't be checked
+	 */
+	public Integer get(String token) {
+		return lookUp(token).join();
+	}
+
+	/**
+	 * Gets the agentid for a token, loading it if it isn't cached
+	 *
+	 * @returns CompletableFuture<Integer> Completes with the agentid, null if the token is invalid, or zero if it couldn't be checked
+	 */
+	public CompletableFuture<Integer> lookUp(final String token) {
+		Entry entry = getEntry(token);
+		if (entry != null) {
+			hits.incrementAndGet();
+			return CompletableFuture.completedFuture(entry.agentid);
+		}
+		misses.incrementAndGet();
+
+		// If another request is already loading this token, share its result rather than asking again
+		final CompletableFuture<Integer> load = new CompletableFuture<Integer>();
+		CompletableFuture<Integer> existing = inFlight.putIfAbsent(token, load);
+		if (existing != null) return existing;
+		loads.incrementAndGet();
+		CompletableFuture<Integer> loaded;
+		try {
+			loaded = loader.load(token);
+		} catch (RuntimeException e) {
+			loaded = CompletableFuture.failedFuture(e);
+		}
+		loaded.whenComplete((agentid, error) -> {
+			if (error != null) {
+				Manager.logErr("Failed to look up auth token");
+				Manager.logErr(error.toString());
+				agentid = 0;
+			}
+			if (agentid == null) {
+				put(token, null, negativeTtl);
+			} else if (agentid > 0) {
+				put(token, agentid, ttl);
+			}
+			inFlight.remove(token, load);
+			load.complete(agentid);
+		});
+		return load;
+	}
+
+	private Entry getEntry(String token) {
+		synchronized (entries) {
+			Entry entry = entries.get(token);
+			if (entry == null) return null;
+			if (entry.expires > System.currentTimeMillis()) return entry;
+			entries.remove(token);
+			expirations.incrementAndGet();
+			return null;
+		}
+	}
+	private void put(String token, Integer agentid, long entryTtl) {
+		if (entryTtl <= 0) return;
+		synchronized (entries) {
+			entries.put(token, new Entry(agentid, System.currentTimeMillis() + entryTtl));
+		}
+	}
+
+	/**
+	 * Returns counters describing how well the cache is working
+	 */
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		synchronized (entries) {
+			stats.put("size", (long)entries.size());
+		}
+		stats.put("maxSize", (long)maxSize);
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("loads", loads.get());
+		stats.put("evictions", evictions.get());
+		stats.put("expirations", expirations.get());
+		return stats;
+	}
+
+	private static class Entry {
+
+		// null for tokens which are known to be invalid
+		final Integer agentid;
+		final long expires;
+		Entry(Integer agentid, long expires) {
+			this.agentid = agentid;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.*;
+import java.util.*;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import com.google.gson.*;
+
+/**
+ * Checks signed auth tokens locally, without asking the auth service
+ *
+ * Signed tokens are in the compact JWT format (header.claims.signature, each base64url encoded), signed either with HMAC-SHA256
+ * using the secret in auth_token_hmac_key, or with Ed25519 using the key whose public half is in auth_token_public_key.
+ * The claims must include the agent's "id" and an "exp" expiry time in seconds since the epoch.
+ * Any other token is opaque, and has to be looked up with the auth service.
+ */
+class TokenVerifier {
+	private final SecretKeySpec hmacKey;
+	private final PublicKey publicKey;
+	private final long leewayMillis;
+	public TokenVerifier() {
+		hmacKey = loadHmacKey(Manager.getSetting("auth_token_hmac_key"));
+		publicKey = loadPublicKey(Manager.getSetting("auth_token_public_key"));
+		leewayMillis = Manager.getIntSetting("auth_token_leeway", 30) * 1000L;
+	}
+	private static SecretKeySpec loadHmacKey(String setting) {
+		if (setting == null || setting.isEmpty()) return null;
+		try {
+			return new SecretKeySpec(Base64.getDecoder().decode(setting), "HmacSHA256");
+		} catch (IllegalArgumentException e) {
+			Manager.logErr("Invalid auth_token_hmac_key, it should be base64 encoded");
+			return null;
+		}
+	}
+	private static PublicKey loadPublicKey(String setting) {
+		if (setting == null || setting.isEmpty()) return null;
+		try {
+			return KeyFactory.getInstance("Ed25519").generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(setting)));
+		} catch (IllegalArgumentException | GeneralSecurityException e) {
+			Manager.logErr("Invalid auth_token_public_key, it should be a base64 encoded X.509 Ed25519 public key");
+			Manager.logErr(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Whether a token is one which should be checked locally
+	 */
+	public boolean canVerify(String token) {
+		if (hmacKey == null && publicKey == null) return false;
+		int first = token.indexOf('.');
+		if (first == -1) return false;
+		int second = token.indexOf('.', first + 1);
+		return second != -1 && token.indexOf('.', second + 1) == -1;
+	}
+
+	/**
+	 * Checks a signed token's signature and expiry
+	 *
+	 * @returns Integer The agentid the token was issued to, or null if the token isn't valid
+	 */
+	public Integer verify(String token) {
+		String[] parts = token.split("\\.", -1);
+		if (parts.length != 3) return null;
+		try {
+			Gson gson = new Gson();
+			Header header = gson.fromJson(decode(parts[0]), Header.class);
+			byte[] signed = (parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII);
+			byte[] signature = Base64.getUrlDecoder().decode(parts[2]);
+
+			// Only accept the algorithm which goes with each configured key, whatever else the token claims
+			boolean valid;
+			if (header != null && "HS256".equals(header.alg) && hmacKey != null) {
+				Mac mac = Mac.getInstance("HmacSHA256");
+				mac.init(hmacKey);
+				valid = MessageDigest.isEqual(mac.doFinal(signed), signature);
+			} else if (header != null && "EdDSA".equals(header.alg) && publicKey != null) {
+				Signature verifier = Signature.getInstance("Ed25519");
+				verifier.initVerify(publicKey);
+				verifier.update(signed);
+				valid = verifier.verify(signature);
+			} else {
+				valid = false;
+			}
+			if (!valid) {
+				Manager.log("Auth Error: Signed token failed verification");
+				return null;
+			}
+			Claims claims = gson.fromJson(decode(parts[1]), Claims.class);
+			if (claims == null || claims.id <= 0 || claims.exp <= 0) return null;
+
+			// Allow a little leeway, in case the clocks here and on the auth service differ
+			if (claims.exp * 1000 + leewayMillis < System.currentTimeMillis()) return null;
+			return claims.id;
+		} catch (IllegalArgumentException | JsonParseException | GeneralSecurityException e) {
+			Manager.log("Auth Error: Malformed signed token");
+			return null;
+		}
+	}
+	private static String decode(String part) {
+		return new String(Base64.getUrlDecoder().decode(part), StandardCharsets.UTF_8);
+	}
+
+	static class Header {
+		private String alg;
+	}
+	static class Claims {
+		private int id;
+		private long exp;
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Keeps the dashboard up to date by listening to /api/events, rather than reloading the whole page
+ *
+ * The page says which event was the latest when it was rendered, so nothing that happens in between gets missed.
+ * Catching up on events which happened before the page was served does no harm, as each event carries the state it left
+ * its service in.
+ */
+(function () {
+
+	// Without live updates, reload the page every so often instead
+	function poll() {
+		window.setTimeout(function () {
+			window.location.reload();
+		}, 30000);
+	}
+	if (!window.EventSource) {
+		poll();
+		return;
+	}
+	var body = document.body;
+	var serviceId = body.getAttribute('data-service');
+	var types = ['started', 'exited', 'restartscheduled', 'crashloop', 'startfailed', 'ready', 'configreloaded', 'error', 'cleared'];
+
+	// A page served from the cache has the id it was rendered with, which is fine unless it's too old to catch up from
+	var since = parseInt(body.getAttribute('data-lasteventid'), 10) || 0;
+	try {
+		var resetTo = parseInt(sessionStorage.getItem('lasteventid'), 10);
+		sessionStorage.removeItem('lasteventid');
+		if (resetTo > since) since = resetTo;
+	} catch (e) {
+		// Without session storage, a cached page just catches up from its own id
+	}
+	var events = new EventSource('/api/events?lastEventId=' + since);
+
+	// The browser reconnects by itself, but if that keeps failing (eg a proxy which drops the stream), or it gives up, poll
+	var failures = 0;
+	events.onopen = function () {
+		failures = 0;
+	};
+	events.onerror = function () {
+		if (++failures < 3 && events.readyState != EventSource.CLOSED) return;
+		events.close();
+		if (output) output.close();
+		poll();
+	};
+
+	function update(event) {
+		var data = JSON.parse(event.data);
+		var state = data.running ? 'running' : 'stopped';
+		if (!serviceId) {
+			var item = document.getElementById('service-' + data.service);
+
+			// A service the page doesn't know about must have been added since it was rendered
+			if (!item) {
+				reload();
+				return;
+			}
+			item.className = state + (data.error ? ' error' : '');
+			return;
+		}
+		if (data.service != serviceId) return;
+		var status = document.getElementById('status');
+		status.className = state;
+		status.textContent = state;
+		if (data.type == 'cleared') {
+			clearOutput('stdout');
+			clearOutput('stderr');
+		}
+	}
+	function reload() {
+		events.close();
+		window.location.reload();
+	}
+	for (var i = 0; i < types.length; i++) {
+		events.addEventListener(types[i], update);
+	}
+
+	// Sent when the events since the page was rendered are no longer available.  The reloaded page shows things as they are,
+	// even if it comes from the cache, so it carries on from the reset rather than from the id it was rendered with
+	events.addEventListener('reset', function (event) {
+		try {
+			sessionStorage.setItem('lasteventid', event.lastEventId);
+		} catch (e) {
+			// Without session storage, the reloaded page catches up from its own id
+		}
+		reload();
+	});
+	if (!serviceId) return;
+
+	// On a service's own page, also follow its output as it's logged
+	var outputLength = parseInt(body.getAttribute('data-outputlength'), 10) || 10;
+	var output = new EventSource('/api/services/' + encodeURIComponent(serviceId) + '/logs/stream');
+	function outputDiv(stream) {
+		return document.querySelector('.output.' + stream);
+	}
+	function clearOutput(stream) {
+		var div = outputDiv(stream);
+		if (div) div.textContent = '';
+	}
+	function appendOutput(stream, line) {
+		var div = outputDiv(stream);
+		if (!div) return;
+		var lines = div.textContent.split('\n');
+		if (lines[lines.length - 1] === '') lines.pop();
+		lines.push(line);
+		div.textContent = lines.slice(-outputLength).join('\n') + '\n';
+	}
+	output.addEventListener('stdout', function (event) {
+		appendOutput('stdout', event.data);
+	});
+	output.addEventListener('stderr', function (event) {
+		appendOutput('stderr', event.data);
+	});
+})();